@@ -0,0 +1,206 @@
+// BeanDecodeBenchmark.java
+//
+// Measures decoding a JWKS into typed beans with JavaxJson.fromJson, which
+// looks up each bean class's setters once, against the loop it replaced,
+// which introspected the class and called its setters reflectively for
+// every object decoded.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.json.JavaxJson;
+import com.google.apigee.util.JwksGenerator;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.StringReader;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+import javax.json.JsonValue;
+import javax.json.spi.JsonProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BeanDecodeBenchmark {
+
+  public static class Jwk {
+    private String kty;
+    private String kid;
+    private String use;
+    private String alg;
+    private String n;
+    private String e;
+    private List<String> x5c;
+
+    public String getKty() {
+      return kty;
+    }
+
+    public void setKty(String kty) {
+      this.kty = kty;
+    }
+
+    public String getKid() {
+      return kid;
+    }
+
+    public void setKid(String kid) {
+      this.kid = kid;
+    }
+
+    public String getUse() {
+      return use;
+    }
+
+    public void setUse(String use) {
+      this.use = use;
+    }
+
+    public String getAlg() {
+      return alg;
+    }
+
+    public void setAlg(String alg) {
+      this.alg = alg;
+    }
+
+    public String getN() {
+      return n;
+    }
+
+    public void setN(String n) {
+      this.n = n;
+    }
+
+    public String getE() {
+      return e;
+    }
+
+    public void setE(String e) {
+      this.e = e;
+    }
+
+    public List<String> getX5c() {
+      return x5c;
+    }
+
+    public void setX5c(List<String> x5c) {
+      this.x5c = x5c;
+    }
+  }
+
+  public static class Jwks {
+    private List<Jwk> keys;
+
+    public List<Jwk> getKeys() {
+      return keys;
+    }
+
+    public void setKeys(List<Jwk> keys) {
+      this.keys = keys;
+    }
+  }
+
+  @Param({"1", "8", "64"})
+  int keyCount;
+
+  String json;
+  JsonReaderFactory readerFactory;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    // the certificates are small, so that decoding the beans dominates
+    json =
+        new JwksGenerator(keyCount)
+            .withKeyCount(keyCount)
+            .withKeySizes(1024)
+            .withKinds(JwksGenerator.Kind.RSA_BOTH)
+            .generate();
+    readerFactory =
+        JsonProvider.provider().createReaderFactory(Collections.<String, Object>emptyMap());
+  }
+
+  @Benchmark
+  public Jwks cachedSetters() {
+    return JavaxJson.fromJson(json, Jwks.class);
+  }
+
+  @Benchmark
+  public Object reflectiveLoop() throws Exception {
+    try (JsonReader reader = readerFactory.createReader(new StringReader(json))) {
+      return decodeReflectively(reader.readObject(), Jwks.class);
+    }
+  }
+
+  /* the loop JavaxJson.decodeObject used, before it cached the setters */
+  @SuppressWarnings("deprecation")
+  private static Object decodeReflectively(JsonObject object, Class<?> targetClass)
+      throws Exception {
+    Object bean = targetClass.newInstance();
+    for (PropertyDescriptor property :
+        Introspector.getBeanInfo(targetClass).getPropertyDescriptors()) {
+      if (property.getWriteMethod() != null && object.containsKey(property.getName())) {
+        property
+            .getWriteMethod()
+            .invoke(
+                bean,
+                decodeValue(
+                    object.get(property.getName()),
+                    property.getWriteMethod().getGenericParameterTypes()[0]));
+      }
+    }
+    return bean;
+  }
+
+  private static Object decodeValue(JsonValue value, Type type) throws Exception {
+    if (type instanceof ParameterizedType) {
+      Type element = ((ParameterizedType) type).getActualTypeArguments()[0];
+      if (element != String.class) {
+        List<Object> list = new ArrayList<Object>();
+        for (JsonValue item : value.asJsonArray()) {
+          list.add(decodeReflectively(item.asJsonObject(), (Class<?>) element));
+        }
+        return list;
+      }
+      return JavaxJson.fromJsonValue(value, List.class);
+    }
+    return JavaxJson.fromJsonValue(value, (Class<?>) type);
+  }
+}
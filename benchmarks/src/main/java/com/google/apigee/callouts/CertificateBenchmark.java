@@ -0,0 +1,78 @@
+// CertificateBenchmark.java
+//
+// Measures the per-key steps of the transform in isolation: parsing an x5c
+// into an X509Certificate, reading n and e with the DER reader, and encoding
+// a modulus as base64url.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.util.JwksGenerator;
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CertificateBenchmark {
+
+  @Param({"2048", "3072", "4096"})
+  int keySize;
+
+  String x5c;
+  BigInteger modulus;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    JwksGenerator generator = new JwksGenerator(keySize);
+    x5c = generator.chain(generator.rsaKeyPair(keySize), 1, "CN=benchmark").get(0);
+    modulus = ((RSAPublicKey) TransformJwks.x5cToCert(x5c).getPublicKey()).getModulus();
+  }
+
+  @Benchmark
+  public X509Certificate x5cToCert() throws Exception {
+    return TransformJwks.x5cToCert(x5c);
+  }
+
+  @Benchmark
+  public CertificateKeyCache.RsaComponents decodeRsaComponents() throws Exception {
+    return TransformJwks.decodeRsaComponents(x5c);
+  }
+
+  @Benchmark
+  public String encode() {
+    return TransformJwks.encode(modulus);
+  }
+}
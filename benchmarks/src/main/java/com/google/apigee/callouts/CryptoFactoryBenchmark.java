@@ -0,0 +1,100 @@
+// CryptoFactoryBenchmark.java
+//
+// Compares looking up CertificateFactory and KeyFactory on every call with
+// the pooled instances from CryptoFactories. The difference shows up under
+// contention, so each benchmark runs at 1, 8 and 32 threads, in the nested
+// classes OneThread, EightThreads and ThirtyTwoThreads.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class CryptoFactoryBenchmark {
+  static final String x5c_from_RFC7517 =
+      "MIIDQjCCAiqgAwIBAgIGATz/FuLiMA0GCSqGSIb3DQEBBQUAMGIxCzAJBgNVBAYTAlVTMQswCQYDVQQIEwJDTzEPMA0GA1UEBxMGRGVudmVyMRwwGgYDVQQKExNQaW5nIElkZW50aXR5IENvcnAuMRcwFQYDVQQDEw5CcmlhbiBDYW1wYmVsbDAeFw0xMzAyMjEyMzI5MTVaFw0xODA4MTQyMjI5MTVaMGIxCzAJBgNVBAYTAlVTMQswCQYDVQQIEwJDTzEPMA0GA1UEBxMGRGVudmVyMRwwGgYDVQQKExNQaW5nIElkZW50aXR5IENvcnAuMRcwFQYDVQQDEw5CcmlhbiBDYW1wYmVsbDCCASIwDQYJKoZIhvcNAQEBBQADggEPADCCAQoCggEBAL64zn8/QnHYMeZ0LncoXaEde1fiLm1jHjmQsF/449IYALM9if6amFtPDy2yvz3YlRij66s5gyLCyO7ANuVRJx1NbgizcAblIgjtdf/u3WG7K+IiZhtELto/A7Fck9Ws6SQvzRvOE8uSirYbgmj6He4iO8NCyvaK0jIQRMMGQwsU1quGmFgHIXPLfnpnfajr1rVTAwtgV5LEZ4Iel+W1GC8ugMhyr4/p1MtcIM42EA8BzE6ZQqC7VPqPvEjZ2dbZkaBhPbiZAS3YeYBRDWm1p1OZtWamT3cEvqqPpnjL1XyW+oyVVkaZdklLQp2Btgt9qr21m42f4wTw+Xrp6rCKNb0CAwEAATANBgkqhkiG9w0BAQUFAAOCAQEAh8zGlfSlcI0o3rYDPBB07aXNswb4ECNIKG0CETTUxmXl9KUL+9gGlqCz5iWLOgWsnrcKcY0vXPG9J1r9AqBNTqNgHq2G03X09266X5CpOe1zFo+Owb1zxtp3PehFdfQJ610CDLEaS9V9Rqp17hCyybEpOGVwe8fnk+fbEL2Bo3UPGrpsHzUoaGpDftmWssZkhpBJKVMJyf/RuP2SmmaIzmnw9JiSlYhzo4tpzd5rFXhjRbg4zW9C+2qok+2+qDM1iJ684gPHMIY8aLWrdgQTxkumGmTqgawR+N5MDtdPTEQ0XfIBc2cJEUyMTY5MPvACWpkA6SdS4xSvdXK3IVfOWA==";
+
+  byte[] der;
+  RSAPublicKeySpec keySpec;
+
+  @Setup
+  public void setup() throws Exception {
+    Security.addProvider(new BouncyCastleProvider());
+    der = Base64.getDecoder().decode(x5c_from_RFC7517);
+    RSAPublicKey publicKey = (RSAPublicKey) TransformJwks.x5cToCert(x5c_from_RFC7517).getPublicKey();
+    keySpec = new RSAPublicKeySpec(publicKey.getModulus(), publicKey.getPublicExponent());
+  }
+
+  @Benchmark
+  public Certificate certificatePerCallLookup() throws Exception {
+    CertificateFactory factory = CertificateFactory.getInstance("X.509", "BC");
+    return factory.generateCertificate(new ByteArrayInputStream(der));
+  }
+
+  @Benchmark
+  public Certificate certificatePooled() throws Exception {
+    return CryptoFactories.generateCertificate(der);
+  }
+
+  @Benchmark
+  public PublicKey rsaKeyPerCallLookup() throws Exception {
+    return KeyFactory.getInstance("RSA").generatePublic(keySpec);
+  }
+
+  @Benchmark
+  public PublicKey rsaKeyPooled() throws Exception {
+    return CryptoFactories.generateRsaPublicKey(keySpec);
+  }
+
+  @Threads(1)
+  public static class OneThread extends CryptoFactoryBenchmark {}
+
+  @Threads(8)
+  public static class EightThreads extends CryptoFactoryBenchmark {}
+
+  @Threads(32)
+  public static class ThirtyTwoThreads extends CryptoFactoryBenchmark {}
+}
@@ -0,0 +1,100 @@
+// JavaxJsonBenchmark.java
+//
+// Measures decoding a JWKS into maps and lists with JavaxJson.fromJson, and
+// encoding it back with JavaxJson.toJson. Certificate chains make up most of
+// the bytes, so chain length matters as much as key count here.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.json.JavaxJson;
+import com.google.apigee.util.JwksGenerator;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.json.JsonWriter;
+import javax.json.JsonWriterFactory;
+import javax.json.spi.JsonProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JavaxJsonBenchmark {
+
+  @Param({"1", "8", "64"})
+  int keyCount;
+
+  @Param({"2048", "3072", "4096"})
+  int keySize;
+
+  @Param({"1", "3"})
+  int chainLength;
+
+  String json;
+  Map<String, Object> map;
+  JsonWriterFactory writerFactory;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    json =
+        new JwksGenerator(keySize)
+            .withKeyCount(keyCount)
+            .withKeySizes(keySize)
+            .withChainLengths(chainLength)
+            .generate();
+    map = JavaxJson.fromJson(json, Map.class);
+    writerFactory =
+        JsonProvider.provider().createWriterFactory(Collections.<String, Object>emptyMap());
+  }
+
+  @Benchmark
+  public Map<String, Object> fromJson() {
+    return JavaxJson.fromJson(json, Map.class);
+  }
+
+  @Benchmark
+  public String toJson() throws Exception {
+    return JavaxJson.toJson(map);
+  }
+
+  /* how toJson worked before, copying the map into a JsonObject first */
+  @Benchmark
+  public String toJsonViaObjectBuilder() throws Exception {
+    StringWriter out = new StringWriter();
+    try (JsonWriter writer = writerFactory.createWriter(out)) {
+      writer.writeObject(JavaxJson.toJsonObject(map));
+    }
+    return out.toString();
+  }
+}
@@ -0,0 +1,74 @@
+// JwkToPemBenchmark.java
+//
+// Measures JwkToPem.transform for a single JWK, both when the PEM must be
+// built and when it comes from the cache.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.util.JwksGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwkToPemBenchmark {
+
+  @Param({"2048", "3072", "4096"})
+  int keySize;
+
+  String jwk;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    RSAPublicKey publicKey =
+        (RSAPublicKey) new JwksGenerator(keySize).rsaKeyPair(keySize).getPublic();
+    jwk =
+        String.format(
+            "{\"kty\":\"RSA\",\"kid\":\"k0\",\"n\":\"%s\",\"e\":\"%s\"}",
+            TransformJwks.encode(publicKey.getModulus()),
+            TransformJwks.encode(publicKey.getPublicExponent()));
+  }
+
+  @Benchmark
+  public String uncached() throws Exception {
+    JwkToPem.clearCache();
+    return JwkToPem.transform(jwk);
+  }
+
+  @Benchmark
+  public String cached() throws Exception {
+    return JwkToPem.transform(jwk);
+  }
+}
@@ -0,0 +1,94 @@
+// ParallelTransformBenchmark.java
+//
+// Compares decoding the keys of a JWKS one at a time with decoding them on
+// the shared pool, across a range of key counts, to locate the point at
+// which parallel-threshold starts to pay off. The per-certificate cache is
+// cleared before each invocation so that every key is decoded.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.util.CertificateGenerator;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelTransformBenchmark {
+
+  @Param({"2", "8", "32", "128", "512"})
+  int keyCount;
+
+  byte[] jwks;
+  TransformOptions sequential;
+  TransformOptions parallel;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    Security.addProvider(new BouncyCastleProvider());
+    CertificateGenerator generator = new CertificateGenerator(keyCount);
+    KeyPair[] keys = new KeyPair[4];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = generator.rsaKeyPair(2048);
+    }
+    StringBuilder sb = new StringBuilder("{\"keys\":[");
+    for (int i = 0; i < keyCount; i++) {
+      if (i > 0) sb.append(",");
+      // each certificate is distinct, even where the key pair repeats
+      String x5c = CertificateGenerator.toX5c(generator.selfSigned(keys[i % 4], "CN=key" + i));
+      sb.append(String.format("{\"kty\":\"RSA\",\"kid\":\"k%d\",\"x5c\":[\"%s\"]}", i, x5c));
+    }
+    jwks = sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    sequential = new TransformOptions().withParallelThreshold(0);
+    parallel = new TransformOptions().withParallelThreshold(1);
+  }
+
+  @Setup(Level.Invocation)
+  public void clearKeyCache() {
+    CertificateKeyCache.getInstance().clear();
+  }
+
+  @Benchmark
+  public byte[] sequential() throws Exception {
+    return TransformJwks.transform(jwks, sequential, new TransformStats());
+  }
+
+  @Benchmark
+  public byte[] parallel() throws Exception {
+    return TransformJwks.transform(jwks, parallel, new TransformStats());
+  }
+}
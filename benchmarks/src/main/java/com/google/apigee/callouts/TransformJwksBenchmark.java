@@ -0,0 +1,97 @@
+// TransformJwksBenchmark.java
+//
+// Measures a complete TransformJwks transform, in tree and streaming modes,
+// across key counts, key sizes and chain lengths. The per-certificate cache
+// is cleared before each invocation so that every key is decoded. Narrow the
+// matrix with -p, eg:
+//
+//   java -jar target/benchmarks.jar TransformJwksBenchmark -p keySize=2048 -rf json
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.util.JwksGenerator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformJwksBenchmark {
+
+  @Param({"1", "8", "64"})
+  int keyCount;
+
+  @Param({"2048", "3072", "4096"})
+  int keySize;
+
+  @Param({"1", "3"})
+  int chainLength;
+
+  byte[] jwks;
+  TransformOptions tree;
+  TransformOptions streaming;
+  TransformOptions splice;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    jwks =
+        new JwksGenerator(keySize)
+            .withKeyCount(keyCount)
+            .withKeySizes(keySize)
+            .withChainLengths(chainLength)
+            .generateBytes();
+    tree = new TransformOptions().withMode(TransformJwks.Mode.TREE);
+    streaming = new TransformOptions().withMode(TransformJwks.Mode.STREAMING);
+    splice = new TransformOptions().withMode(TransformJwks.Mode.SPLICE);
+  }
+
+  @Setup(Level.Invocation)
+  public void clearKeyCache() {
+    CertificateKeyCache.getInstance().clear();
+  }
+
+  @Benchmark
+  public byte[] tree() throws Exception {
+    return TransformJwks.transform(jwks, tree, new TransformStats());
+  }
+
+  @Benchmark
+  public byte[] streaming() throws Exception {
+    return TransformJwks.transform(jwks, streaming, new TransformStats());
+  }
+
+  @Benchmark
+  public byte[] splice() throws Exception {
+    return TransformJwks.transform(jwks, splice, new TransformStats());
+  }
+}
@@ -0,0 +1,43 @@
+// BadKeyException.java
+//
+// Thrown when an x5c value does not yield an RSA public key, because it is
+// not a valid certificate, or carries some other kind of key. Failures are
+// remembered for a while, by message, and a new exception is thrown each
+// time the x5c is seen again; as that happens on every request that carries
+// it, the exception does not fill in a stack trace. The first failure keeps
+// its cause.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+public class BadKeyException extends IllegalStateException {
+  private static final long serialVersionUID = 1L;
+
+  public BadKeyException(String message) {
+    super(message);
+  }
+
+  public BadKeyException(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    return this;
+  }
+}
@@ -0,0 +1,71 @@
+// CacheControl.java
+//
+// Reads the freshness lifetime that an upstream grants a response, from its
+// Cache-Control and Age headers. The callout passes this on, so that a
+// response cache in front of the transformed JWKS keeps it no longer than
+// the upstream allows.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+public final class CacheControl {
+  private CacheControl() {}
+
+  /*
+   * Returns the number of seconds for which a shared cache may keep the
+   * response, or -1 if the headers do not say. s-maxage takes precedence
+   * over max-age, and no-store, no-cache and private all mean zero. The
+   * Age, if present, is subtracted.
+   **/
+  public static long maxAge(String cacheControl, String age) {
+    if (cacheControl == null) return -1;
+    long maxAge = -1;
+    long sharedMaxAge = -1;
+    for (String part : cacheControl.split(",")) {
+      String directive = part.trim().toLowerCase();
+      if (directive.equals("no-store")
+          || directive.equals("no-cache")
+          || directive.equals("private")) {
+        return 0;
+      }
+      if (directive.startsWith("max-age=")) {
+        maxAge = parseSeconds(directive.substring(8));
+      } else if (directive.startsWith("s-maxage=")) {
+        sharedMaxAge = parseSeconds(directive.substring(9));
+      }
+    }
+    long lifetime = (sharedMaxAge >= 0) ? sharedMaxAge : maxAge;
+    if (lifetime < 0) return -1;
+    long ageSeconds = parseSeconds(age);
+    return (ageSeconds > 0) ? Math.max(0, lifetime - ageSeconds) : lifetime;
+  }
+
+  private static long parseSeconds(String value) {
+    if (value == null) return -1;
+    value = value.trim();
+    if (value.startsWith("\"") && value.endsWith("\"") && value.length() > 1) {
+      value = value.substring(1, value.length() - 1);
+    }
+    try {
+      long v = Long.parseLong(value);
+      return (v >= 0) ? v : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
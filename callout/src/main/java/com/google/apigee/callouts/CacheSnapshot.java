@@ -0,0 +1,300 @@
+// CacheSnapshot.java
+//
+// Saves the transformed JWKS documents and the decoded certificates that the
+// process holds to a file, and puts them back after a restart, so that the
+// first requests a new message processor serves do not all pay for decoding
+// certificates, or send the upstream a burst of fetches.
+//
+// The file is a header followed by one record per entry. Each record carries
+// a CRC-32 of its contents; a record that fails the check, or a JWKS entry
+// that has expired, is skipped when the file is read. The file is named only
+// by a system property, and written only by this class, so what passes the
+// check is trusted as it is: certificates are not decoded again, which is
+// the point of keeping them. The cache settings in force when the file was
+// written are not kept; restored JWKS entries are held until a policy
+// configures its cache, and go into that cache under its own settings. The file is read
+// through a memory mapping, and written to a temporary file in the same
+// directory that is then moved over the old one, so that a reader never sees
+// a half-written snapshot.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+public final class CacheSnapshot {
+  static final int MAGIC = 0x4a574b53; // "JWKS"
+  static final int VERSION = 3;
+  static final byte JWKS_RECORD = 1;
+  static final byte CERTIFICATE_RECORD = 2;
+  static final long SAVE_DELAY_MILLIS = 1000;
+
+  private static final Set<Path> loaded = ConcurrentHashMap.newKeySet();
+  // JWKS entries read from a snapshot, by cache key, until they expire
+  private static final Map<String, JwksCache.Entry> restored = new ConcurrentHashMap<>();
+  private static final Set<Path> pending = ConcurrentHashMap.newKeySet();
+  private static final Object writeLock = new Object();
+
+  private static final ScheduledThreadPoolExecutor writer =
+      new ScheduledThreadPoolExecutor(
+          1,
+          r -> {
+            Thread t = new Thread(r, "jwks-snapshot");
+            t.setDaemon(true);
+            return t;
+          });
+
+  static {
+    // the thread exits when idle, so that it does not keep the classloader after undeploy
+    writer.setKeepAliveTime(60, TimeUnit.SECONDS);
+    writer.allowCoreThreadTimeOut(true);
+  }
+
+  private CacheSnapshot() {}
+
+  /*
+   * Reads the snapshot at the given path, the first time it is asked for in
+   * this process. A missing or unreadable file is the same as an empty one.
+   **/
+  public static void loadOnce(Path file) {
+    file = file.toAbsolutePath();
+    if (!loaded.add(file)) return;
+    try {
+      read(file);
+    } catch (IOException e) {
+      // start cold
+    }
+  }
+
+  /*
+   * Saves the caches to the given path shortly, on a background thread.
+   * Requests to save that arrive before the write begins share it.
+   **/
+  public static void saveLater(Path file) {
+    final Path target = file.toAbsolutePath();
+    if (!pending.add(target)) return;
+    writer.schedule(
+        () -> {
+          pending.remove(target);
+          try {
+            write(target);
+          } catch (IOException e) {
+            // the next change tries again
+          }
+        },
+        SAVE_DELAY_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /*
+   * Writes every cache in the process to the given path, replacing the
+   * file that is there.
+   **/
+  public static void write(Path file) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+    DataOutputStream out = new DataOutputStream(buffer);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    // the same result may be held under several settings; keep the one that lasts longest
+    Map<String, JwksCache.Entry> entries = new LinkedHashMap<>();
+    for (JwksCache cache : JwksCache.instances().values()) {
+      for (Map.Entry<String, JwksCache.Entry> e : cache.snapshot().entrySet()) {
+        entries.merge(e.getKey(), e.getValue(), (a, b) -> (a.expiry >= b.expiry) ? a : b);
+      }
+    }
+    for (Map.Entry<String, JwksCache.Entry> e : entries.entrySet()) {
+      ByteArrayOutputStream record = new ByteArrayOutputStream(e.getValue().bytes.length + 128);
+      DataOutputStream r = new DataOutputStream(record);
+      r.writeLong(e.getValue().created);
+      r.writeLong(e.getValue().expiry);
+      r.writeLong(e.getValue().strippedBytes);
+      writeBytes(r, e.getKey().getBytes(StandardCharsets.UTF_8));
+      writeBytes(r, e.getValue().bytes);
+      writeRecord(out, JWKS_RECORD, record.toByteArray());
+    }
+    for (Map.Entry<String, CertificateKeyCache.RsaComponents> e :
+        CertificateKeyCache.getInstance().snapshot().entrySet()) {
+      ByteArrayOutputStream record = new ByteArrayOutputStream(e.getKey().length() + 512);
+      DataOutputStream r = new DataOutputStream(record);
+      writeBytes(r, e.getKey().getBytes(StandardCharsets.UTF_8));
+      writeBytes(r, e.getValue().getModulus().getBytes(StandardCharsets.UTF_8));
+      writeBytes(r, e.getValue().getExponent().getBytes(StandardCharsets.UTF_8));
+      writeRecord(out, CERTIFICATE_RECORD, record.toByteArray());
+    }
+    out.flush();
+
+    synchronized (writeLock) {
+      Path dir = file.toAbsolutePath().getParent();
+      Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+      try {
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+          ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+          while (bytes.hasRemaining()) {
+            channel.write(bytes);
+          }
+          channel.force(true);
+        }
+        try {
+          Files.move(
+              temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeRecord(DataOutputStream out, byte type, byte[] payload)
+      throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(type);
+    crc.update(payload, 0, payload.length);
+    out.writeByte(type);
+    out.writeInt(payload.length);
+    out.write(payload);
+    out.writeInt((int) crc.getValue());
+  }
+
+  /*
+   * Puts the certificates saved at the given path back into their cache,
+   * and holds the JWKS entries for restoreInto. Returns how many of each
+   * were restored. Records that fail their checksum, JWKS
+   * entries that have expired, and anything after a truncated record are
+   * skipped. A file that is missing, or is not a snapshot, restores nothing.
+   **/
+  public static int read(Path file) throws IOException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (NoSuchFileException e) {
+      return 0;
+    }
+    if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      return 0;
+    }
+    int restored = 0;
+    CRC32 crc = new CRC32();
+    while (buffer.remaining() >= 9) {
+      byte type = buffer.get();
+      int length = buffer.getInt();
+      if (length < 0 || length > buffer.remaining() - 4) break;
+      ByteBuffer payload = buffer.slice();
+      payload.limit(length);
+      buffer.position(buffer.position() + length);
+      int expected = buffer.getInt();
+      crc.reset();
+      crc.update(type);
+      crc.update(payload.duplicate());
+      if ((int) crc.getValue() != expected) continue;
+      try {
+        if (restore(type, payload)) restored++;
+      } catch (RuntimeException e) {
+        // a record that passed its checksum but does not decode; skip it
+      }
+    }
+    return restored;
+  }
+
+  private static boolean restore(byte type, ByteBuffer payload) {
+    if (type == JWKS_RECORD) {
+      long created = payload.getLong();
+      long expiry = payload.getLong();
+      long strippedBytes = payload.getLong();
+      String key = new String(readBytes(payload), StandardCharsets.UTF_8);
+      byte[] content = readBytes(payload);
+      if (expiry <= System.currentTimeMillis()) return false;
+      restored.put(key, new JwksCache.Entry(content, strippedBytes, created, expiry));
+      return true;
+    }
+    if (type == CERTIFICATE_RECORD) {
+      String x5c = new String(readBytes(payload), StandardCharsets.UTF_8);
+      String n = new String(readBytes(payload), StandardCharsets.UTF_8);
+      String e = new String(readBytes(payload), StandardCharsets.UTF_8);
+      CertificateKeyCache.getInstance().put(x5c, new CertificateKeyCache.RsaComponents(n, e));
+      return true;
+    }
+    return false;
+  }
+
+  /*
+   * Puts the JWKS entries read from snapshots into the given cache, as far
+   * as its settings allow: an entry lasts no longer than the cache's ttl
+   * from when it was created. Returns how many were added.
+   **/
+  public static int restoreInto(JwksCache cache) {
+    if (restored.isEmpty()) return 0;
+    long now = System.currentTimeMillis();
+    long ttlMillis = cache.getSettings().ttlMillis;
+    int added = 0;
+    for (Map.Entry<String, JwksCache.Entry> e : restored.entrySet()) {
+      JwksCache.Entry entry = e.getValue();
+      if (entry.expiry <= now) {
+        restored.remove(e.getKey(), entry);
+        continue;
+      }
+      long expiry = Math.min(entry.expiry, entry.created + ttlMillis);
+      if (cache.restore(e.getKey(), entry.bytes, entry.strippedBytes, entry.created, expiry)) {
+        added++;
+      }
+    }
+    return added;
+  }
+
+  /*
+   * Drops the JWKS entries held from snapshots read so far.
+   **/
+  static void clearRestored() {
+    restored.clear();
+  }
+
+  private static byte[] readBytes(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalStateException("invalid snapshot record");
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
@@ -26,13 +26,34 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public abstract class CalloutBase {
-  private static final Pattern variableReferencePattern =
-      Pattern.compile("(.*?)\\{([^\\{\\} :][^\\{\\} ]*?)\\}(.*?)");
   private static final Pattern commonErrorPattern = Pattern.compile("^(.+?)[:;] (.+)$");
   protected Map<String, String> properties; // read-only
+  private final Map<String, PropertyTemplate> templates; // read-only
+  private final boolean debug;
+  private final boolean metrics;
 
   public CalloutBase(Map properties) {
     this.properties = genericizeMap(properties);
+    this.templates = compileTemplates(this.properties);
+    String wantDebug = this.properties.get("debug");
+    this.debug = (wantDebug != null) && Boolean.parseBoolean(wantDebug);
+    String wantMetrics = this.properties.get("metrics");
+    this.metrics = (wantMetrics != null) && Boolean.parseBoolean(wantMetrics);
+  }
+
+  /*
+   * Property values are fixed for the lifetime of the policy, so parse
+   * each one into a template just once.
+   **/
+  private static Map<String, PropertyTemplate> compileTemplates(Map<String, String> properties) {
+    Map<String, PropertyTemplate> m = new HashMap<String, PropertyTemplate>();
+    for (Map.Entry<String, String> entry : properties.entrySet()) {
+      String value = entry.getValue().trim();
+      if (!value.equals("")) {
+        m.put(entry.getKey(), PropertyTemplate.compile(value));
+      }
+    }
+    return Collections.unmodifiableMap(m);
   }
 
   public static Map<String, String> genericizeMap(Map properties) {
@@ -53,51 +74,49 @@ public abstract class CalloutBase {
     return "jwks_" + s;
   }
 
-  protected String getSource(MessageContext msgCtxt) throws IllegalStateException {
-    // Retrieve a value from a named property, as a string.
-    String value = (String) this.properties.get("source");
-    if (value != null) value = value.trim();
-    if (value == null || value.equals("")) {
+  /*
+   * Retrieve the value of a named property, as a string, resolving any
+   * variable references it holds. Returns null if the property is absent,
+   * or if it resolves to an empty string.
+   **/
+  protected String getSimpleProperty(String propName, MessageContext msgCtxt) {
+    PropertyTemplate template = templates.get(propName);
+    if (template == null) {
       return null;
     }
-    value = resolveVariableReferences(value, msgCtxt);
+    String value = template.resolve(msgCtxt);
     if (value == null || value.equals("")) {
       return null;
     }
     return value;
   }
 
+  protected String getSource(MessageContext msgCtxt) throws IllegalStateException {
+    return getSimpleProperty("source", msgCtxt);
+  }
+
+  protected String getDestination(MessageContext msgCtxt) throws IllegalStateException {
+    return getSimpleProperty("destination", msgCtxt);
+  }
+
   protected boolean getDebug() {
-    String wantDebug = (String) this.properties.get("debug");
-    boolean debug = (wantDebug != null) && Boolean.parseBoolean(wantDebug);
     return debug;
   }
 
   /*
-   *
-   * If a property holds one or more segments wrapped with begin and end
-   * curlies, eg, {apiproxy.name}, then "resolve" the value by de-referencing
-   * the context variable whose name appears between the curlies.
+   * When the metrics property is true, publishes the phase timings and key
+   * counts from a transform, so that slow executions can be attributed to a
+   * phase. Parallel decoding sums the time spent on every thread.
    **/
-  protected String resolveVariableReferences(String spec, MessageContext msgCtxt) {
-    if (spec == null || spec.equals("")) return spec;
-    Matcher matcher = variableReferencePattern.matcher(spec);
-    StringBuffer sb = new StringBuffer();
-    while (matcher.find()) {
-      matcher.appendReplacement(sb, "");
-      sb.append(matcher.group(1));
-      String ref = matcher.group(2);
-      String[] parts = ref.split(":", 2);
-      Object v = msgCtxt.getVariable(parts[0]);
-      if (v != null) {
-        sb.append((String) v);
-      } else if (parts.length > 1) {
-        sb.append(parts[1]);
-      }
-      sb.append(matcher.group(3));
-    }
-    matcher.appendTail(sb);
-    return sb.toString();
+  protected void setMetricsVariables(TransformStats stats, MessageContext msgCtxt) {
+    if (!metrics) return;
+    msgCtxt.setVariable(varName("parse_ns"), Long.toString(stats.parseNanos));
+    msgCtxt.setVariable(varName("decode_ns"), Long.toString(stats.decodeNanos));
+    msgCtxt.setVariable(varName("encode_ns"), Long.toString(stats.encodeNanos));
+    msgCtxt.setVariable(varName("serialize_ns"), Long.toString(stats.serializeNanos));
+    msgCtxt.setVariable(varName("keys_seen"), Integer.toString(stats.keysSeen));
+    msgCtxt.setVariable(varName("keys_transformed"), Integer.toString(stats.keysTransformed));
+    msgCtxt.setVariable(varName("keys_skipped"), Integer.toString(stats.keysSkipped));
   }
 
   protected static String getStackTraceAsString(Throwable t) {
@@ -0,0 +1,126 @@
+// CertificateKeyCache.java
+//
+// A bounded LRU cache that maps an x5c value to the base64url-encoded
+// modulus and exponent of the RSA public key it carries. It is shared by
+// all policy instances in the process, so a certificate that appears in
+// several JWKS documents, or that survives a key rotation, is parsed once.
+//
+// It also remembers, for a few minutes, the x5c values that failed to decode,
+// by digest, so that a broken certificate in a published JWKS is not parsed
+// again on every request.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.util.Map;
+
+public class CertificateKeyCache {
+  static final int DEFAULT_MAX_ENTRIES = 512;
+  static final int DEFAULT_MAX_FAILURES = 256;
+  static final long DEFAULT_FAILURE_TTL_MILLIS = 300 * 1000L;
+
+  private static final CertificateKeyCache instance = new CertificateKeyCache(DEFAULT_MAX_ENTRIES);
+
+  private final LruCache<String, RsaComponents> entries;
+  private final LruCache<String, Failure> failures;
+  private final long failureTtlMillis;
+
+  public static final class RsaComponents {
+    final String n;
+    final String e;
+
+    RsaComponents(String n, String e) {
+      this.n = n;
+      this.e = e;
+    }
+
+    public String getModulus() {
+      return n;
+    }
+
+    public String getExponent() {
+      return e;
+    }
+  }
+
+  private static final class Failure {
+    final String message;
+    final long expiry;
+
+    Failure(String message, long expiry) {
+      this.message = message;
+      this.expiry = expiry;
+    }
+  }
+
+  CertificateKeyCache(int maxEntries) {
+    this(maxEntries, DEFAULT_MAX_FAILURES, DEFAULT_FAILURE_TTL_MILLIS);
+  }
+
+  CertificateKeyCache(int maxEntries, int maxFailures, long failureTtlMillis) {
+    this.entries = new LruCache<String, RsaComponents>(maxEntries);
+    this.failures = new LruCache<String, Failure>(maxFailures);
+    this.failureTtlMillis = failureTtlMillis;
+  }
+
+  public static CertificateKeyCache getInstance() {
+    return instance;
+  }
+
+  public RsaComponents get(String x5c) {
+    return entries.get(x5c);
+  }
+
+  public void put(String x5c, RsaComponents components) {
+    entries.put(x5c, components);
+  }
+
+  /*
+   * A copy of the decoded certificates, from least to most recently used.
+   **/
+  Map<String, RsaComponents> snapshot() {
+    return entries.snapshot();
+  }
+
+  /*
+   * Returns a new exception with the message that the x5c of the given
+   * digest failed to decode with, or null if it has not failed recently.
+   * The exception is never shared, so that whatever a caller adds to it,
+   * such as suppressed exceptions, stays with that caller.
+   **/
+  public BadKeyException getFailure(String x5cDigest) {
+    Failure failure = failures.get(x5cDigest);
+    if (failure == null || failure.expiry <= System.currentTimeMillis()) return null;
+    return new BadKeyException(failure.message);
+  }
+
+  public void putFailure(String x5cDigest, BadKeyException exception) {
+    failures.put(
+        x5cDigest,
+        new Failure(exception.getMessage(), System.currentTimeMillis() + failureTtlMillis));
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public void clear() {
+    entries.clear();
+    failures.clear();
+  }
+}
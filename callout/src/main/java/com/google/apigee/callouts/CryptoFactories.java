@@ -0,0 +1,99 @@
+// CryptoFactories.java
+//
+// Small, bounded pools of the JCA factories used by the callouts. Looking up
+// a factory by algorithm and provider goes through synchronized provider
+// tables, which contend across message-processor threads. The factories
+// themselves are not guaranteed to be thread-safe, so a caller borrows one
+// for a single operation and then returns it.
+//
+// The pools are static fields of this class, and not thread-locals, so that
+// the message processor's long-lived threads do not keep factories, from the
+// Bouncy Castle provider loaded with the callout, reachable after the proxy
+// is undeployed.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import java.util.concurrent.ArrayBlockingQueue;
+
+public class CryptoFactories {
+  static final int POOL_SIZE = 16;
+
+  private static final ArrayBlockingQueue<CertificateFactory> certificateFactories =
+      new ArrayBlockingQueue<>(POOL_SIZE);
+  private static final ArrayBlockingQueue<KeyFactory> rsaKeyFactories =
+      new ArrayBlockingQueue<>(POOL_SIZE);
+  private static final ArrayBlockingQueue<MessageDigest> sha256Digests =
+      new ArrayBlockingQueue<>(POOL_SIZE);
+
+  private CryptoFactories() {}
+
+  /*
+   * Parses a DER-encoded X.509 certificate. A factory is created only when
+   * every pooled one is in use; one returned to a full pool is dropped.
+   **/
+  public static Certificate generateCertificate(byte[] der)
+      throws CertificateException, NoSuchProviderException {
+    CertificateFactory factory = certificateFactories.poll();
+    if (factory == null) {
+      factory = CertificateFactory.getInstance("X.509", "BC");
+    }
+    try {
+      return factory.generateCertificate(new ByteArrayInputStream(der));
+    } finally {
+      certificateFactories.offer(factory);
+    }
+  }
+
+  public static PublicKey generateRsaPublicKey(KeySpec keySpec)
+      throws NoSuchAlgorithmException, InvalidKeySpecException {
+    KeyFactory factory = rsaKeyFactories.poll();
+    if (factory == null) {
+      factory = KeyFactory.getInstance("RSA");
+    }
+    try {
+      return factory.generatePublic(keySpec);
+    } finally {
+      rsaKeyFactories.offer(factory);
+    }
+  }
+
+  public static byte[] sha256(byte[] content) throws NoSuchAlgorithmException {
+    MessageDigest md = sha256Digests.poll();
+    if (md == null) {
+      md = MessageDigest.getInstance("SHA-256");
+    }
+    try {
+      return md.digest(content);
+    } finally {
+      md.reset();
+      sha256Digests.offer(md);
+    }
+  }
+}
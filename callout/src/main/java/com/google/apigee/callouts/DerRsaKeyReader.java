@@ -0,0 +1,175 @@
+// DerRsaKeyReader.java
+//
+// Reads the RSA modulus and exponent out of a DER-encoded X.509 certificate
+// without building an X509Certificate. It walks only the TLV headers needed
+// to reach the SubjectPublicKeyInfo, and skips over the names, validity,
+// extensions and signature, checking only that each is where it belongs and
+// that together they fill the certificate exactly. Anything it does not
+// expect causes it to return null, so the caller can fall back to the full
+// parser, which rejects it.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+public class DerRsaKeyReader {
+  private static final int TAG_INTEGER = 0x02;
+  private static final int TAG_BIT_STRING = 0x03;
+  private static final int TAG_NULL = 0x05;
+  private static final int TAG_OID = 0x06;
+  private static final int TAG_SEQUENCE = 0x30;
+  private static final int TAG_VERSION = 0xA0; // [0] EXPLICIT, constructed
+
+  // what may follow the SubjectPublicKeyInfo, in order: issuerUniqueID [1],
+  // subjectUniqueID [2], both IMPLICIT BIT STRING, and extensions [3] EXPLICIT
+  private static final int[] TBS_TRAILING_TAGS = {0x81, 0x82, 0xA3};
+
+  // 1.2.840.113549.1.1.1
+  private static final byte[] RSA_ENCRYPTION_OID = {
+    (byte) 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x01, 0x01
+  };
+
+  private final byte[] der;
+  private int pos;
+  private int length; // length of the most recently read TLV
+
+  private DerRsaKeyReader(byte[] der) {
+    this.der = der;
+  }
+
+  /*
+   * Returns the base64url-encoded modulus and exponent, or null if the
+   * certificate is not one this reader understands.
+   **/
+  public static CertificateKeyCache.RsaComponents read(byte[] der) {
+    byte[][] integers = readIntegers(der);
+    if (integers == null) return null;
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    return new CertificateKeyCache.RsaComponents(
+        encoder.encodeToString(integers[0]), encoder.encodeToString(integers[1]));
+  }
+
+  /*
+   * Returns the unsigned big-endian modulus and exponent, without leading
+   * zeros, or null if the certificate is not one this reader understands.
+   **/
+  public static byte[][] readIntegers(byte[] der) {
+    try {
+      return new DerRsaKeyReader(der).readCertificate();
+    } catch (ArrayIndexOutOfBoundsException e) {
+      return null;
+    }
+  }
+
+  private byte[][] readCertificate() {
+    // Certificate ::= SEQUENCE { tbsCertificate, signatureAlgorithm, signature }
+    if (!enter(TAG_SEQUENCE) || pos + length != der.length) return null;
+    // TBSCertificate ::= SEQUENCE { ... }
+    if (!enter(TAG_SEQUENCE)) return null;
+    int tbsEnd = pos + length;
+    if ((der[pos] & 0xFF) == TAG_VERSION && !skip(TAG_VERSION)) return null;
+    if (!skip(TAG_INTEGER)) return null; // serialNumber
+    if (!skip(TAG_SEQUENCE)) return null; // signature
+    if (!skip(TAG_SEQUENCE)) return null; // issuer
+    if (!skip(TAG_SEQUENCE)) return null; // validity
+    if (!skip(TAG_SEQUENCE)) return null; // subject
+
+    // SubjectPublicKeyInfo ::= SEQUENCE { algorithm, subjectPublicKey }
+    if (!enter(TAG_SEQUENCE)) return null;
+    int publicKeyInfoEnd = pos + length;
+    if (!enter(TAG_SEQUENCE)) return null;
+    int algorithmEnd = pos + length;
+    if (!enter(TAG_OID) || !matches(RSA_ENCRYPTION_OID)) return null;
+    pos += length;
+    if (pos < algorithmEnd) {
+      // the parameters for rsaEncryption must be NULL
+      if (!enter(TAG_NULL) || length != 0 || pos != algorithmEnd) return null;
+    }
+
+    // subjectPublicKey BIT STRING, with no unused bits, wrapping RSAPublicKey
+    if (!enter(TAG_BIT_STRING) || length < 1 || der[pos] != 0) return null;
+    int bitStringEnd = pos + length;
+    pos++;
+    // RSAPublicKey ::= SEQUENCE { modulus INTEGER, publicExponent INTEGER }
+    if (!enter(TAG_SEQUENCE) || pos + length != bitStringEnd) return null;
+    byte[] n = readPositiveInteger();
+    if (n == null) return null;
+    byte[] e = readPositiveInteger();
+    if (e == null || pos != bitStringEnd || pos != publicKeyInfoEnd) return null;
+
+    for (int tag : TBS_TRAILING_TAGS) {
+      if (pos < tbsEnd && (der[pos] & 0xFF) == tag && !skip(tag)) return null;
+    }
+    if (pos != tbsEnd) return null;
+    // signatureAlgorithm, then the signature, which ends the certificate
+    if (!skip(TAG_SEQUENCE)) return null;
+    if (!skip(TAG_BIT_STRING) || pos != der.length) return null;
+    return new byte[][] {n, e};
+  }
+
+  /*
+   * Reads a tag and length. On success, pos points at the contents, and
+   * length holds the length of the contents.
+   **/
+  private boolean enter(int expectedTag) {
+    if ((der[pos++] & 0xFF) != expectedTag) return false;
+    int first = der[pos++] & 0xFF;
+    if (first < 0x80) {
+      length = first;
+    } else {
+      int count = first & 0x7F;
+      if (count == 0 || count > 3) return false; // indefinite, or absurdly large
+      int value = 0;
+      for (int i = 0; i < count; i++) {
+        value = (value << 8) | (der[pos++] & 0xFF);
+      }
+      if (value < 0x80) return false; // not DER
+      length = value;
+    }
+    return pos + length <= der.length;
+  }
+
+  private boolean skip(int expectedTag) {
+    if (!enter(expectedTag)) return false;
+    pos += length;
+    return true;
+  }
+
+  private boolean matches(byte[] expected) {
+    if (length != expected.length) return false;
+    for (int i = 0; i < length; i++) {
+      if (der[pos + i] != expected[i]) return false;
+    }
+    return true;
+  }
+
+  private byte[] readPositiveInteger() {
+    if (!enter(TAG_INTEGER) || length == 0) return null;
+    int start = pos;
+    int end = pos + length;
+    pos = end;
+    if ((der[start] & 0x80) != 0) return null; // negative
+    while (start < end - 1 && der[start] == 0) {
+      start++;
+    }
+    if (der[start] == 0) return null; // zero
+    return Arrays.copyOfRange(der, start, end);
+  }
+}
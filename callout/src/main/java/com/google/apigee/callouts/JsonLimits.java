@@ -0,0 +1,291 @@
+// JsonLimits.java
+//
+// Bounds on the size and shape of a JWKS that the callout will accept. The
+// byte count is checked as the content is read, which stops one byte past the
+// limit, so that an oversized document is never held in memory whole. The
+// rest are checked by a parser that wraps the one each transform reads the
+// content with, so the limits cost no parse of their own, and the first limit
+// exceeded stops the parse before any more of the tree is built.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import javax.json.stream.JsonLocation;
+import javax.json.stream.JsonParser;
+
+public class JsonLimits {
+  static final long DEFAULT_MAX_BYTES = 1024L * 1024;
+  static final int DEFAULT_MAX_DEPTH = 16;
+  static final int DEFAULT_MAX_KEYS = 256;
+  static final int DEFAULT_MAX_X5C = 10;
+  static final int DEFAULT_MAX_STRING = 65536;
+
+  final long maxBytes;
+  final int maxDepth;
+  final int maxKeys;
+  final int maxX5c;
+  final int maxString;
+
+  /*
+   * Thrown when content exceeds a limit. The message names the limit.
+   **/
+  public static class LimitExceededException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    LimitExceededException(String message) {
+      super(message);
+    }
+  }
+
+  JsonLimits(long maxBytes, int maxDepth, int maxKeys, int maxX5c, int maxString) {
+    this.maxBytes = maxBytes;
+    this.maxDepth = maxDepth;
+    this.maxKeys = maxKeys;
+    this.maxX5c = maxX5c;
+    this.maxString = maxString;
+  }
+
+  /*
+   * Parses a spec like "max-bytes=1048576, max-depth=16, max-keys=256,
+   * max-x5c=10, max-string=65536". Any setting that is omitted takes its
+   * default, and "true" means all the defaults. Returns null if the spec is
+   * absent, "false" or "none", meaning no limits.
+   **/
+  public static JsonLimits parse(String spec) {
+    if (spec == null) return null;
+    spec = spec.trim();
+    if (spec.equals("") || spec.equalsIgnoreCase("false") || spec.equalsIgnoreCase("none")) {
+      return null;
+    }
+    long maxBytes = DEFAULT_MAX_BYTES;
+    long maxDepth = DEFAULT_MAX_DEPTH;
+    long maxKeys = DEFAULT_MAX_KEYS;
+    long maxX5c = DEFAULT_MAX_X5C;
+    long maxString = DEFAULT_MAX_STRING;
+    if (!spec.equalsIgnoreCase("true")) {
+      for (String part : spec.split(",")) {
+        String[] pair = part.split("=", 2);
+        if (pair.length != 2) {
+          throw new IllegalStateException("invalid limits setting: " + part.trim());
+        }
+        String name = pair[0].trim();
+        long value = parsePositive(name, pair[1].trim());
+        if (name.equals("max-bytes")) {
+          maxBytes = value;
+        } else if (name.equals("max-depth")) {
+          maxDepth = value;
+        } else if (name.equals("max-keys")) {
+          maxKeys = value;
+        } else if (name.equals("max-x5c")) {
+          maxX5c = value;
+        } else if (name.equals("max-string")) {
+          maxString = value;
+        } else {
+          throw new IllegalStateException("unknown limits setting: " + name);
+        }
+      }
+    }
+    return new JsonLimits(
+        maxBytes, toInt(maxDepth), toInt(maxKeys), toInt(maxX5c), toInt(maxString));
+  }
+
+  private static long parsePositive(String name, String value) {
+    try {
+      long v = Long.parseLong(value);
+      if (v > 0) return v;
+    } catch (NumberFormatException e) {
+      // fall through
+    }
+    throw new IllegalStateException("invalid value for limits setting " + name + ": " + value);
+  }
+
+  private static int toInt(long value) {
+    return (int) Math.min(value, Integer.MAX_VALUE);
+  }
+
+  String id() {
+    return "limits="
+        + maxBytes + "/" + maxDepth + "/" + maxKeys + "/" + maxX5c + "/" + maxString;
+  }
+
+  public void checkSize(byte[] content) {
+    if (content.length > maxBytes) {
+      throw new LimitExceededException(
+          "content is " + content.length + " bytes, over max-bytes=" + maxBytes);
+    }
+  }
+
+  /*
+   * Checks the size of content held as a string, before it is encoded.
+   * Every character takes at least one byte, so a string with more
+   * characters than max-bytes is over the limit whatever its encoding.
+   **/
+  public void checkSize(String content) {
+    if (content.length() > maxBytes) {
+      throw new LimitExceededException(
+          "content is at least " + content.length() + " bytes, over max-bytes=" + maxBytes);
+    }
+  }
+
+  /*
+   * Reads the stream to its end, but stops at one byte past max-bytes, if
+   * there are limits, so that the content over the limit is never read.
+   **/
+  static byte[] readAll(InputStream in, JsonLimits limits) throws IOException {
+    if (in == null) return new byte[0];
+    long maxBytes = (limits != null) ? limits.maxBytes : Long.MAX_VALUE;
+    ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+    byte[] buffer = new byte[8192];
+    long total = 0;
+    while (true) {
+      // up to one byte past the limit, to tell content at the limit from content over it
+      long room = maxBytes - total;
+      int n = in.read(buffer, 0, (room < buffer.length) ? (int) room + 1 : buffer.length);
+      if (n == -1) break;
+      out.write(buffer, 0, n);
+      total += n;
+      if (total > maxBytes) {
+        throw new LimitExceededException("content is over max-bytes=" + maxBytes);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /*
+   * Returns a parser that reads from the given one, and checks the
+   * structure of the content as it goes. Pass null limits to get the
+   * parser back unchanged. A document that is not valid JSON is reported by
+   * the parser it wraps, if it is within the limits as far as it goes.
+   **/
+  static JsonParser limit(JsonParser parser, JsonLimits limits) {
+    return (limits != null) ? new LimitedParser(parser, limits) : parser;
+  }
+
+  private void checkString(String value) {
+    if (value.length() > maxString) {
+      throw new LimitExceededException(
+          "string of " + value.length() + " characters, over max-string=" + maxString);
+    }
+  }
+
+  /*
+   * Checks each event as it is read. Only next() and the accessors for
+   * the current event are supported; the methods that read a whole object
+   * or array at once would bypass the checks.
+   **/
+  private static final class LimitedParser implements JsonParser {
+    private final JsonParser parser;
+    private final JsonLimits limits;
+    private int depth;
+    private String name; // the member that the next value belongs to
+    private boolean inKeys;
+    private boolean inX5c;
+    private int keyCount;
+    private int chainLength;
+
+    LimitedParser(JsonParser parser, JsonLimits limits) {
+      this.parser = parser;
+      this.limits = limits;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return parser.hasNext();
+    }
+
+    @Override
+    public Event next() {
+      Event event = parser.next();
+      if (event == Event.KEY_NAME) {
+        name = parser.getString();
+        limits.checkString(name);
+        return event;
+      }
+      if (event == Event.END_OBJECT || event == Event.END_ARRAY) {
+        depth--;
+        if (depth == 1) inKeys = false;
+        if (depth == 3) inX5c = false;
+        return event;
+      }
+      // a value, directly within a container at the current depth
+      if (inKeys && depth == 2 && ++keyCount > limits.maxKeys) {
+        throw new LimitExceededException("more than max-keys=" + limits.maxKeys + " keys");
+      }
+      if (inX5c && depth == 4 && ++chainLength > limits.maxX5c) {
+        throw new LimitExceededException(
+            "more than max-x5c=" + limits.maxX5c + " certificates in an x5c");
+      }
+      if (event == Event.VALUE_STRING) {
+        limits.checkString(parser.getString());
+      } else if (event == Event.START_OBJECT || event == Event.START_ARRAY) {
+        if (++depth > limits.maxDepth) {
+          throw new LimitExceededException("nesting deeper than max-depth=" + limits.maxDepth);
+        }
+        if (event == Event.START_ARRAY) {
+          if (depth == 2 && "keys".equals(name)) {
+            inKeys = true;
+          } else if (depth == 4 && inKeys && "x5c".equals(name)) {
+            inX5c = true;
+            chainLength = 0;
+          }
+        }
+      }
+      name = null;
+      return event;
+    }
+
+    @Override
+    public String getString() {
+      return parser.getString();
+    }
+
+    @Override
+    public boolean isIntegralNumber() {
+      return parser.isIntegralNumber();
+    }
+
+    @Override
+    public int getInt() {
+      return parser.getInt();
+    }
+
+    @Override
+    public long getLong() {
+      return parser.getLong();
+    }
+
+    @Override
+    public BigDecimal getBigDecimal() {
+      return parser.getBigDecimal();
+    }
+
+    @Override
+    public JsonLocation getLocation() {
+      return parser.getLocation();
+    }
+
+    @Override
+    public void close() {
+      parser.close();
+    }
+  }
+}
@@ -21,41 +21,86 @@ import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
 import com.google.apigee.json.JavaxJson;
 import java.math.BigInteger;
-import java.security.KeyFactory;
+import java.security.GeneralSecurityException;
 import java.security.PublicKey;
 import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class JwkToPem extends CalloutBase implements Execution {
-  public JwkToPem(Map properties) {
-    super(properties);
-  }
+  private static final String PEM_HEADER = "-----BEGIN PUBLIC KEY-----\n";
+  private static final String PEM_FOOTER = "-----END PUBLIC KEY-----\n";
+  private static final int PEM_LINE_LENGTH = 64;
 
-  protected String getDestination(MessageContext msgCtxt) throws IllegalStateException {
-    // Retrieve a value from a named property, as a string.
-    String value = (String) this.properties.get("destination");
-    if (value != null) value = value.trim();
-    if (value == null || value.equals("")) {
-      return null;
+  // finished PEM strings, keyed by n and e
+  private static final LruCache<String, String> pemCache = new LruCache<>(256);
+
+  // kids that can be used as they are in a variable name
+  private static final Pattern VARIABLE_SAFE_KID = Pattern.compile("[A-Za-z0-9_-]{1,128}");
+
+  // the variables that the batch conversion writes besides the PEMs
+  private static final List<String> RESERVED_SUFFIXES =
+      Arrays.asList("kids", "duplicate_kids", "invalid_kids");
+
+  enum Input {
+    JWK,
+    JWKS;
+
+    static Input parse(String value) {
+      if (value == null || value.trim().equals("")) return JWK;
+      switch (value.trim().toLowerCase()) {
+        case "jwk":
+          return JWK;
+        case "jwks":
+          return JWKS;
+        default:
+          throw new IllegalStateException("unknown input: " + value.trim());
+      }
     }
-    value = resolveVariableReferences(value, msgCtxt);
-    if (value == null || value.equals("")) {
-      return null;
+  }
+
+  private Input input = Input.JWK;
+  private IllegalStateException configurationError;
+
+  public JwkToPem(Map properties) {
+    super(properties);
+    try {
+      this.input = Input.parse(this.properties.get("input"));
+    } catch (IllegalStateException exc1) {
+      this.configurationError = exc1;
     }
-    return value;
   }
 
   protected static String transform(String jwkContent) throws Exception {
-    Map<String, Object> jwk = JavaxJson.fromJson(jwkContent, Map.class);
-    String modulus_b64 = (String) jwk.get("n");
-    String exponent_b64 = (String) jwk.get("e");
+    return transform(JavaxJson.fromJson(jwkContent, Map.class), new TransformStats());
+  }
+
+  static String transform(Map<String, Object> jwk, TransformStats stats) throws Exception {
+    Object n = jwk.get("n");
+    Object e = jwk.get("e");
+    if (!(n instanceof String) || !(e instanceof String)) {
+      throw new IllegalStateException("jwk lacks n or e");
+    }
+    return toPem((String) n, (String) e, stats);
+  }
 
-    System.out.printf("n: %s\n", modulus_b64);
-    System.out.printf("e: %s\n", exponent_b64);
+  static String toPem(String modulus_b64, String exponent_b64, TransformStats stats)
+      throws Exception {
+    // neither value can contain a dot, so this key is unambiguous
+    String cacheKey = modulus_b64 + "." + exponent_b64;
+    String pem = pemCache.get(cacheKey);
+    if (pem != null) {
+      stats.pemCacheHits++;
+      return pem;
+    }
+    stats.pemCacheMisses++;
 
+    long start = System.nanoTime();
     byte[] nbytes = Base64.getUrlDecoder().decode(modulus_b64);
     byte[] ebytes = Base64.getUrlDecoder().decode(exponent_b64); // probably AQAB
 
@@ -63,20 +108,135 @@ public class JwkToPem extends CalloutBase implements Execution {
     BigInteger publicExponent = new BigInteger(1, ebytes);
 
     PublicKey publicKey =
-        KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, publicExponent));
+        CryptoFactories.generateRsaPublicKey(new RSAPublicKeySpec(modulus, publicExponent));
 
-    byte[] publicKeyBytes = publicKey.getEncoded();
-
-    String base64Encoded = Base64.getEncoder().encodeToString(publicKeyBytes);
-    Pattern p = Pattern.compile(".{1,64}");
-    Matcher m = p.matcher(base64Encoded);
-    String pem =
-        "-----BEGIN PUBLIC KEY-----\n" + m.replaceAll("$0\n") + "-----END PUBLIC KEY-----\n";
+    byte[] der = publicKey.getEncoded();
+    long decoded = System.nanoTime();
+    stats.decodeNanos += decoded - start;
+    pem = encodePem(der);
+    stats.encodeNanos += System.nanoTime() - decoded;
+    pemCache.put(cacheKey, pem);
     return pem;
   }
 
+  /*
+   * Converts every RSA key in a JWKS that carries a kid. A key with n and e
+   * is converted directly; a key with only an x5c takes n and e from the
+   * first certificate in the chain. Other keys are skipped. Returns a map
+   * from kid to PEM, in document order.
+   *
+   * The kid becomes part of a variable name, so a key whose kid is not made
+   * of letters, digits, '-' and '_', or that names one of the other
+   * variables, is skipped and its kid added to the invalid list. If a kid
+   * repeats, the first key wins, as when selecting a key by kid, and the kid
+   * is added to the duplicates list. A key whose n and e, or whose
+   * certificate, cannot be decoded is skipped and its kid added to the
+   * invalid list, and the other keys are still converted.
+   **/
+  static Map<String, String> transformAll(
+      Map<String, Object> jwks, List<String> duplicates, List<String> invalid, TransformStats stats)
+      throws Exception {
+    Object keys = jwks.get("keys");
+    if (!(keys instanceof List)) {
+      throw new IllegalStateException("jwks content has no keys");
+    }
+    Map<String, String> pems = new LinkedHashMap<String, String>();
+    for (Object item : (List<Object>) keys) {
+      if (!(item instanceof Map)) continue;
+      Map<String, Object> jwk = (Map<String, Object>) item;
+      stats.keysSeen++;
+      Object kid = jwk.get("kid");
+      if (!(kid instanceof String) || !"RSA".equals(jwk.get("kty"))) {
+        stats.keysSkipped++;
+        continue;
+      }
+      if (!isVariableSafe((String) kid)) {
+        if (!invalid.contains(kid)) invalid.add((String) kid);
+        stats.keysSkipped++;
+        continue;
+      }
+      if (pems.containsKey(kid)) {
+        if (!duplicates.contains(kid)) duplicates.add((String) kid);
+        stats.keysSkipped++;
+        continue;
+      }
+      String pem;
+      try {
+        pem = toPem(jwk, stats);
+      } catch (BadKeyException | IllegalArgumentException | GeneralSecurityException exc1) {
+        // one bad key does not keep the others from being converted
+        if (!invalid.contains(kid)) invalid.add((String) kid);
+        stats.keysSkipped++;
+        continue;
+      }
+      if (pem == null) {
+        stats.keysSkipped++;
+        continue;
+      }
+      pems.put((String) kid, pem);
+      stats.keysTransformed++;
+    }
+    return pems;
+  }
+
+  /*
+   * Returns the PEM for one RSA key in a JWKS, from its n and e or else from
+   * the first certificate in its x5c, or null if it has neither. Throws if
+   * the values are there but cannot be used.
+   **/
+  private static String toPem(Map<String, Object> jwk, TransformStats stats) throws Exception {
+    Object n = jwk.get("n");
+    Object e = jwk.get("e");
+    if (n instanceof String && e instanceof String) {
+      return toPem((String) n, (String) e, stats);
+    }
+    Object chain = jwk.get("x5c");
+    if (!(chain instanceof List) || ((List<Object>) chain).isEmpty()) {
+      return null;
+    }
+    Object first = ((List<Object>) chain).get(0);
+    if (!(first instanceof String)) {
+      throw new BadKeyException("x5c does not hold a certificate");
+    }
+    CertificateKeyCache.RsaComponents components =
+        TransformJwks.rsaComponents((String) first, stats);
+    return toPem(components.getModulus(), components.getExponent(), stats);
+  }
+
+  static boolean isVariableSafe(String kid) {
+    return VARIABLE_SAFE_KID.matcher(kid).matches() && !RESERVED_SUFFIXES.contains(kid);
+  }
+
+  /*
+   * Wraps the DER encoding of a SubjectPublicKeyInfo in PEM armor, with the
+   * base64 text broken into lines of 64 characters. The output is built in
+   * a single buffer sized up front.
+   **/
+  static String encodePem(byte[] der) {
+    byte[] b64 = Base64.getEncoder().encode(der);
+    int lines = (b64.length + PEM_LINE_LENGTH - 1) / PEM_LINE_LENGTH;
+    char[] out = new char[PEM_HEADER.length() + b64.length + lines + PEM_FOOTER.length()];
+    PEM_HEADER.getChars(0, PEM_HEADER.length(), out, 0);
+    int pos = PEM_HEADER.length();
+    for (int i = 0; i < b64.length; i++) {
+      out[pos++] = (char) b64[i];
+      if ((i + 1) % PEM_LINE_LENGTH == 0 || i == b64.length - 1) {
+        out[pos++] = '\n';
+      }
+    }
+    PEM_FOOTER.getChars(0, PEM_FOOTER.length(), out, pos);
+    return new String(out);
+  }
+
+  static void clearCache() {
+    pemCache.clear();
+  }
+
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
     try {
+      if (configurationError != null) {
+        throw configurationError;
+      }
       String sourceVariable = getSource(msgCtxt);
       if (sourceVariable == null) {
         throw new IllegalStateException("source not specified");
@@ -95,8 +255,40 @@ public class JwkToPem extends CalloutBase implements Execution {
         throw new IllegalStateException("empty jwk content");
       }
 
-      String pem = transform(jwk);
+      TransformStats stats = new TransformStats();
+      long start = System.nanoTime();
+      Map<String, Object> map = JavaxJson.fromJson(jwk, Map.class);
+      stats.parseNanos += System.nanoTime() - start;
+      if (input == Input.JWKS) {
+        List<String> duplicates = new ArrayList<String>();
+        List<String> invalid = new ArrayList<String>();
+        Map<String, String> pems = transformAll(map, duplicates, invalid, stats);
+        for (Map.Entry<String, String> entry : pems.entrySet()) {
+          msgCtxt.setVariable(destinationVariable + "_" + entry.getKey(), entry.getValue());
+        }
+        msgCtxt.setVariable(destinationVariable + "_kids", String.join(",", pems.keySet()));
+        if (!duplicates.isEmpty()) {
+          msgCtxt.setVariable(
+              destinationVariable + "_duplicate_kids", String.join(",", duplicates));
+        }
+        if (!invalid.isEmpty()) {
+          msgCtxt.setVariable(destinationVariable + "_invalid_kids", String.join(",", invalid));
+        }
+        msgCtxt.setVariable(varName("keycache_hits"), Integer.toString(stats.keyCacheHits));
+        msgCtxt.setVariable(varName("keycache_misses"), Integer.toString(stats.keyCacheMisses));
+        setMetricsVariables(stats, msgCtxt);
+        return ExecutionResult.SUCCESS;
+      }
+      if (getDebug()) {
+        msgCtxt.setVariable(varName("n"), map.get("n"));
+        msgCtxt.setVariable(varName("e"), map.get("e"));
+      }
+      stats.keysSeen++;
+      String pem = transform(map, stats);
+      stats.keysTransformed++;
       msgCtxt.setVariable(destinationVariable, pem);
+      msgCtxt.setVariable(varName("pemcache_hit"), Boolean.toString(stats.pemCacheHits > 0));
+      setMetricsVariables(stats, msgCtxt);
 
       return ExecutionResult.SUCCESS;
     } catch (IllegalStateException exc1) {
@@ -0,0 +1,380 @@
+// JwksCache.java
+//
+// A bounded, process-wide cache of transformed JWKS documents, keyed by a
+// digest of the incoming content. Reads never take a lock; writes, which
+// happen only when the upstream JWKS changes, evict the oldest entries to
+// stay within the configured bounds.
+//
+// When many threads miss on the same content at once, as they do right after
+// a key rotation, only one of them transforms it; the rest wait for that
+// result rather than repeat the work.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class JwksCache {
+  private static final Map<Settings, JwksCache> instances = new ConcurrentHashMap<>();
+  // how long a caller waits for another thread loading the same key, before loading it itself
+  static final long LOAD_WAIT_MILLIS = 2000;
+
+  private final Settings settings;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, CompletableFuture<Entry>> inFlight =
+      new ConcurrentHashMap<>();
+  private final AtomicLong totalBytes = new AtomicLong();
+  private final Object evictionLock = new Object();
+
+  public static final class Settings {
+    static final int DEFAULT_MAX_ENTRIES = 16;
+    static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+    static final long DEFAULT_TTL_SECONDS = 3600;
+
+    final int maxEntries;
+    final long maxBytes;
+    final long ttlMillis;
+
+    Settings(int maxEntries, long maxBytes, long ttlMillis) {
+      this.maxEntries = maxEntries;
+      this.maxBytes = maxBytes;
+      this.ttlMillis = ttlMillis;
+    }
+
+    /*
+     * Parses a spec like "max-entries=16, max-bytes=4194304, ttl=3600".
+     * Any setting that is omitted takes its default. The ttl is in seconds.
+     * Returns null if the spec is "false" or "none", meaning no caching.
+     **/
+    public static Settings parse(String spec) {
+      int maxEntries = DEFAULT_MAX_ENTRIES;
+      long maxBytes = DEFAULT_MAX_BYTES;
+      long ttlSeconds = DEFAULT_TTL_SECONDS;
+      if (spec != null) {
+        spec = spec.trim();
+        if (spec.equalsIgnoreCase("false") || spec.equalsIgnoreCase("none")) {
+          return null;
+        }
+        if (!spec.equals("") && !spec.equalsIgnoreCase("true")) {
+          for (String part : spec.split(",")) {
+            String[] pair = part.split("=", 2);
+            if (pair.length != 2) {
+              throw new IllegalStateException("invalid cache setting: " + part.trim());
+            }
+            String name = pair[0].trim();
+            long value = parseNonNegative(name, pair[1].trim());
+            if (name.equals("max-entries")) {
+              maxEntries = (int) Math.min(value, Integer.MAX_VALUE);
+            } else if (name.equals("max-bytes")) {
+              maxBytes = value;
+            } else if (name.equals("ttl")) {
+              ttlSeconds = value;
+            } else {
+              throw new IllegalStateException("unknown cache setting: " + name);
+            }
+          }
+        }
+      }
+      return new Settings(maxEntries, maxBytes, ttlSeconds * 1000L);
+    }
+
+    private static long parseNonNegative(String name, String value) {
+      try {
+        long v = Long.parseLong(value);
+        if (v >= 0) return v;
+      } catch (NumberFormatException e) {
+        // fall through
+      }
+      throw new IllegalStateException("invalid value for cache setting " + name + ": " + value);
+    }
+
+    String id() {
+      return maxEntries + "/" + maxBytes + "/" + ttlMillis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Settings)) return false;
+      Settings other = (Settings) o;
+      return maxEntries == other.maxEntries
+          && maxBytes == other.maxBytes
+          && ttlMillis == other.ttlMillis;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (maxEntries * 31 + maxBytes * 17 + ttlMillis);
+    }
+  }
+
+  /*
+   * Produces the entry for a key that is not cached. The entry is stored
+   * with this cache's ttl, whatever times it carries.
+   **/
+  public interface Loader {
+    Entry load() throws Exception;
+  }
+
+  public static final class Entry {
+    final byte[] bytes;
+    final long expiry;
+    final long weight;
+    final long created;
+    final long strippedBytes;
+    private volatile String content;
+
+    Entry(byte[] bytes, long strippedBytes, long created, long expiry) {
+      this.bytes = bytes;
+      this.strippedBytes = strippedBytes;
+      this.created = created;
+      this.expiry = expiry;
+      // the UTF-8 bytes, plus the String decoded from them on first use
+      this.weight = 3L * bytes.length;
+    }
+
+    /*
+     * An entry that is not held in any cache.
+     **/
+    public static Entry of(byte[] bytes) {
+      return of(bytes, 0);
+    }
+
+    /*
+     * An entry that is not held in any cache, for output from which members
+     * totalling the given number of bytes were stripped.
+     **/
+    public static Entry of(byte[] bytes, long strippedBytes) {
+      return new Entry(bytes, strippedBytes, 0, Long.MAX_VALUE);
+    }
+
+    /*
+     * The size of the members that were stripped from the output, as
+     * compact JSON.
+     **/
+    public long getStrippedBytes() {
+      return strippedBytes;
+    }
+
+    /*
+     * The UTF-8 encoded JSON. Callers must not modify the array.
+     **/
+    public byte[] getBytes() {
+      return bytes;
+    }
+
+    public String getContent() {
+      String c = content;
+      if (c == null) {
+        c = new String(bytes, StandardCharsets.UTF_8);
+        content = c;
+      }
+      return c;
+    }
+  }
+
+  private JwksCache(Settings settings) {
+    this.settings = settings;
+  }
+
+  Settings getSettings() {
+    return settings;
+  }
+
+  /*
+   * Policies that share the same settings share the same cache.
+   **/
+  public static JwksCache forSettings(Settings settings) {
+    return instances.computeIfAbsent(settings, JwksCache::new);
+  }
+
+  /*
+   * Every cache in the process, along with its settings.
+   **/
+  static Map<Settings, JwksCache> instances() {
+    return instances;
+  }
+
+  public static String digest(String content) {
+    return digest(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public static String digest(byte[] content) {
+    try {
+      byte[] hash = CryptoFactories.sha256(content);
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  public Entry get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) return null;
+    if (entry.expiry <= System.currentTimeMillis()) {
+      if (entries.remove(key, entry)) {
+        totalBytes.addAndGet(-entry.weight);
+      }
+      return null;
+    }
+    return entry;
+  }
+
+  public Entry put(String key, String content) {
+    return put(key, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public Entry put(String key, byte[] content) {
+    return put(key, Entry.of(content));
+  }
+
+  private Entry put(String key, Entry loaded) {
+    long now = System.currentTimeMillis();
+    Entry entry = new Entry(loaded.bytes, loaded.strippedBytes, now, now + settings.ttlMillis);
+    if (entry.weight > settings.maxBytes || settings.maxEntries == 0) {
+      return entry;
+    }
+    Entry previous = entries.put(key, entry);
+    totalBytes.addAndGet(entry.weight - ((previous != null) ? previous.weight : 0));
+    if (entries.size() > settings.maxEntries || totalBytes.get() > settings.maxBytes) {
+      evict();
+    }
+    return entry;
+  }
+
+  /*
+   * Puts back an entry that was saved earlier, with its original times. It
+   * does not replace an entry already present, and is discarded if it has
+   * expired.
+   **/
+  boolean restore(String key, byte[] content, long strippedBytes, long created, long expiry) {
+    if (expiry <= System.currentTimeMillis()) return false;
+    Entry entry = new Entry(content, strippedBytes, created, expiry);
+    if (entry.weight > settings.maxBytes || settings.maxEntries == 0) return false;
+    if (entries.putIfAbsent(key, entry) != null) return false;
+    totalBytes.addAndGet(entry.weight);
+    if (entries.size() > settings.maxEntries || totalBytes.get() > settings.maxBytes) {
+      evict();
+    }
+    return true;
+  }
+
+  /*
+   * A copy of the entries that have not expired.
+   **/
+  Map<String, Entry> snapshot() {
+    Map<String, Entry> copy = new LinkedHashMap<String, Entry>();
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      if (e.getValue().expiry > now) {
+        copy.put(e.getKey(), e.getValue());
+      }
+    }
+    return copy;
+  }
+
+  public Entry load(String key, Loader loader) throws Exception {
+    return load(key, loader, LOAD_WAIT_MILLIS);
+  }
+
+  /*
+   * Returns the entry for the key, calling the loader to produce it if
+   * there is none. Only one caller at a time runs the loader for a given
+   * key; others that arrive meanwhile wait for, and share, its result, or
+   * its failure. A caller that has waited waitMillis runs the loader
+   * itself, so that one load that never finishes does not hold up every
+   * thread that needs the same result.
+   **/
+  public Entry load(String key, Loader loader, long waitMillis) throws Exception {
+    CompletableFuture<Entry> future = new CompletableFuture<Entry>();
+    CompletableFuture<Entry> running = inFlight.putIfAbsent(key, future);
+    if (running != null) {
+      try {
+        return running.get(waitMillis, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        Entry entry = get(key);
+        return (entry != null) ? entry : put(key, loader.load());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) throw (Exception) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        throw e;
+      }
+    }
+    try {
+      // a load that finished just before this one began has already stored it
+      Entry entry = get(key);
+      if (entry == null) {
+        entry = put(key, loader.load());
+      }
+      future.complete(entry);
+      return entry;
+    } catch (Throwable t) {
+      future.completeExceptionally(t);
+      throw t;
+    } finally {
+      inFlight.remove(key, future);
+    }
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public void clear() {
+    synchronized (evictionLock) {
+      entries.clear();
+      totalBytes.set(0);
+    }
+  }
+
+  private void evict() {
+    synchronized (evictionLock) {
+      // first drop anything that has expired, then the oldest entries
+      long now = System.currentTimeMillis();
+      for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+        Map.Entry<String, Entry> e = it.next();
+        if (e.getValue().expiry <= now && entries.remove(e.getKey(), e.getValue())) {
+          totalBytes.addAndGet(-e.getValue().weight);
+        }
+      }
+      while (entries.size() > settings.maxEntries || totalBytes.get() > settings.maxBytes) {
+        Map.Entry<String, Entry> oldest = null;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+          if (oldest == null || e.getValue().created < oldest.getValue().created) {
+            oldest = e;
+          }
+        }
+        if (oldest == null) break;
+        if (entries.remove(oldest.getKey(), oldest.getValue())) {
+          totalBytes.addAndGet(-oldest.getValue().weight);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,439 @@
+// JwksFetcher.java
+//
+// Fetches a JWKS from its URI and keeps the latest copy in memory, so that
+// the callout need not call the upstream on every request. Shortly before a
+// copy expires, a background thread fetches a new one. If the upstream is
+// slow or down, requests keep getting the last good copy, for up to
+// max-stale seconds past its expiry; only then does a failure reach the
+// caller.
+//
+// Refreshes are conditional: the fetcher sends the ETag and Last-Modified of
+// the copy it holds, and an upstream that answers 304 renews that copy
+// without sending it again. A Cache-Control max-age from the upstream
+// shortens the ttl, but never lengthens it.
+//
+// Policies can register a warmer with a fetcher, which the background
+// refresh calls with each new copy, so that the transformed result is ready
+// in the cache before any request asks for it.
+//
+// Fetchers that no policy has used for longer than ttl plus max-stale are
+// dropped, and no more than MAX_FETCHERS are kept, so that a jwks-uri built
+// from a flow variable cannot grow the set without bound.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class JwksFetcher {
+  private static final Map<String, JwksFetcher> instances = new ConcurrentHashMap<>();
+
+  static final int MAX_FETCHERS = 64;
+  static final int MAX_WARMERS = 16;
+  static final int REFRESH_THREADS = 4;
+  static final long FAILURE_BACKOFF_MILLIS = 1000;
+
+  // several threads, so that one slow upstream does not hold up the others
+  private static final ScheduledThreadPoolExecutor refresher =
+      new ScheduledThreadPoolExecutor(
+          REFRESH_THREADS,
+          r -> {
+            Thread t = new Thread(r, "jwks-refresh");
+            t.setDaemon(true);
+            return t;
+          });
+
+  static {
+    // idle threads exit, so that they do not keep the callout's classloader after undeploy
+    refresher.setKeepAliveTime(60, TimeUnit.SECONDS);
+    refresher.allowCoreThreadTimeOut(true);
+  }
+
+  private final String key;
+  private final String uri;
+  private final Settings settings;
+  private final JsonLimits limits;
+  private final Object fetchLock = new Object();
+  private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+  private volatile Snapshot current;
+  private volatile String lastError;
+  private volatile long lastFailure; // when the most recent fetch failed
+  private volatile boolean lastFailureOverLimit;
+  private volatile long lastAccess;
+  private final Map<String, Warmer> warmers = new ConcurrentHashMap<>();
+
+  /*
+   * Prepares whatever a policy derives from a copy of the JWKS. Called on a
+   * refresh thread; a failure is left for the next request to report.
+   **/
+  public interface Warmer {
+    void warm(Snapshot snapshot) throws Exception;
+  }
+
+  public static final class Settings {
+    static final long DEFAULT_TTL_SECONDS = 300;
+    static final int DEFAULT_TIMEOUT_MILLIS = 5000;
+    static final long DEFAULT_MAX_STALE_SECONDS = 3600;
+
+    final long ttlMillis;
+    final int timeoutMillis;
+    final long maxStaleMillis;
+
+    Settings(long ttlMillis, int timeoutMillis, long maxStaleMillis) {
+      this.ttlMillis = ttlMillis;
+      this.timeoutMillis = timeoutMillis;
+      this.maxStaleMillis = maxStaleMillis;
+    }
+
+    /*
+     * Parses a spec like "ttl=300, timeout=5000, max-stale=3600". The ttl
+     * and max-stale are in seconds, the timeout in milliseconds. Any
+     * setting that is omitted takes its default.
+     **/
+    public static Settings parse(String spec) {
+      long ttlSeconds = DEFAULT_TTL_SECONDS;
+      long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+      long maxStaleSeconds = DEFAULT_MAX_STALE_SECONDS;
+      if (spec != null && !spec.trim().equals("")) {
+        for (String part : spec.split(",")) {
+          String[] pair = part.split("=", 2);
+          if (pair.length != 2) {
+            throw new IllegalStateException("invalid fetch setting: " + part.trim());
+          }
+          String name = pair[0].trim();
+          long value = parseNonNegative(name, pair[1].trim());
+          if (name.equals("ttl")) {
+            ttlSeconds = value;
+          } else if (name.equals("timeout")) {
+            timeoutMillis = Math.min(value, Integer.MAX_VALUE);
+          } else if (name.equals("max-stale")) {
+            maxStaleSeconds = value;
+          } else {
+            throw new IllegalStateException("unknown fetch setting: " + name);
+          }
+        }
+      }
+      return new Settings(ttlSeconds * 1000L, (int) timeoutMillis, maxStaleSeconds * 1000L);
+    }
+
+    private static long parseNonNegative(String name, String value) {
+      try {
+        long v = Long.parseLong(value);
+        if (v >= 0) return v;
+      } catch (NumberFormatException e) {
+        // fall through
+      }
+      throw new IllegalStateException("invalid value for fetch setting " + name + ": " + value);
+    }
+
+    String id() {
+      return ttlMillis + "/" + timeoutMillis + "/" + maxStaleMillis;
+    }
+  }
+
+  /*
+   * One fetched copy of the JWKS. The digest identifies the content in the
+   * transform cache, so it is computed once, when the copy is fetched.
+   **/
+  public static final class Snapshot {
+    final byte[] content;
+    final String digest;
+    final String etag;
+    final String lastModified;
+    final long fetched;
+    final long expiry;
+
+    Snapshot(byte[] content, String etag, String lastModified, long fetched, long expiry) {
+      this(content, JwksCache.digest(content), etag, lastModified, fetched, expiry);
+    }
+
+    private Snapshot(
+        byte[] content,
+        String digest,
+        String etag,
+        String lastModified,
+        long fetched,
+        long expiry) {
+      this.content = content;
+      this.digest = digest;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.fetched = fetched;
+      this.expiry = expiry;
+    }
+
+    /*
+     * The same content, confirmed unchanged by the upstream at the given time.
+     **/
+    Snapshot renew(long fetched, long expiry) {
+      return new Snapshot(content, digest, etag, lastModified, fetched, expiry);
+    }
+
+    public byte[] getContent() {
+      return content;
+    }
+
+    public String getDigest() {
+      return digest;
+    }
+
+    /*
+     * True if this copy is past its expiry, and is being served only
+     * because a newer one could not be fetched.
+     **/
+    public boolean isStale() {
+      return expiry <= System.currentTimeMillis();
+    }
+
+    /*
+     * The number of seconds, rounded up, until this copy expires; zero if
+     * it is stale.
+     **/
+    public long getMaxAge() {
+      long remaining = expiry - System.currentTimeMillis();
+      return (remaining > 0) ? (remaining + 999) / 1000 : 0;
+    }
+  }
+
+  private JwksFetcher(String key, String uri, Settings settings, JsonLimits limits) {
+    this.key = key;
+    this.uri = uri;
+    this.settings = settings;
+    this.limits = limits;
+    this.lastAccess = System.currentTimeMillis();
+  }
+
+  /*
+   * Policies that fetch the same URI with the same settings share one copy.
+   * A response over the max-bytes of the limits, if any, is not read past
+   * it, and fails the fetch.
+   **/
+  public static JwksFetcher forUri(String uri, Settings settings, JsonLimits limits) {
+    checkScheme(uri);
+    String key = uri + " " + settings.id() + ((limits != null) ? " " + limits.maxBytes : "");
+    JwksFetcher fetcher =
+        instances.computeIfAbsent(key, k -> new JwksFetcher(k, uri, settings, limits));
+    if (instances.size() > MAX_FETCHERS) {
+      evictLeastRecentlyUsed(fetcher);
+    }
+    return fetcher;
+  }
+
+  private static void evictLeastRecentlyUsed(JwksFetcher keep) {
+    while (instances.size() > MAX_FETCHERS) {
+      JwksFetcher oldest = null;
+      for (JwksFetcher f : instances.values()) {
+        if (f != keep && (oldest == null || f.lastAccess < oldest.lastAccess)) {
+          oldest = f;
+        }
+      }
+      if (oldest == null) return;
+      instances.remove(oldest.key, oldest);
+    }
+  }
+
+  /*
+   * Only http and https are fetched; a URI from a policy property must not
+   * read local files, or anything else a URL handler can reach.
+   **/
+  private static void checkScheme(String uri) {
+    String scheme = null;
+    try {
+      scheme = new URI(uri).getScheme();
+    } catch (URISyntaxException e) {
+      // reported below
+    }
+    if (scheme == null
+        || !(scheme.equalsIgnoreCase("http") || scheme.equalsIgnoreCase("https"))) {
+      throw new IllegalStateException("jwks-uri is not an http or https URL: " + uri);
+    }
+  }
+
+  static int count() {
+    return instances.size();
+  }
+
+  /*
+   * Registers a warmer, under a key that identifies what it prepares, so
+   * that policies configured alike register it once. A warmer registered
+   * after a copy was fetched is called with that copy on the next refresh.
+   **/
+  public void addWarmer(String warmerKey, Warmer warmer) {
+    if (warmers.containsKey(warmerKey) || warmers.size() >= MAX_WARMERS) return;
+    warmers.putIfAbsent(warmerKey, warmer);
+  }
+
+  private void warm(Snapshot snapshot) {
+    for (Warmer warmer : warmers.values()) {
+      try {
+        warmer.warm(snapshot);
+      } catch (Exception e) {
+        // the next request that needs the result tries again, and reports it
+      }
+    }
+  }
+
+  /*
+   * Returns the current copy, fetching it first if there is none, or if the
+   * one there is has been stale for longer than max-stale. Threads that
+   * wait for a fetch that fails, or that ask soon after one failed, get
+   * that failure, rather than each trying the upstream in turn.
+   **/
+  public Snapshot get() throws IOException {
+    long asked = System.currentTimeMillis();
+    lastAccess = asked;
+    Snapshot snapshot = current;
+    if (snapshot != null && lastAccess < snapshot.expiry + settings.maxStaleMillis) {
+      if (lastAccess >= snapshot.expiry) {
+        // the background refresh has not succeeded; try again, but do not wait for it
+        scheduleRefresh(0);
+      }
+      return snapshot;
+    }
+    synchronized (fetchLock) {
+      // another thread may have fetched it while this one waited
+      snapshot = current;
+      if (snapshot != null && System.currentTimeMillis() < snapshot.expiry) {
+        return snapshot;
+      }
+      String error = lastError;
+      if (error != null && lastFailure > asked - FAILURE_BACKOFF_MILLIS) {
+        if (lastFailureOverLimit) throw new JsonLimits.LimitExceededException(error);
+        throw new IOException(error);
+      }
+      return fetch();
+    }
+  }
+
+  /*
+   * The message from the most recent failed fetch, or null if the most
+   * recent fetch succeeded.
+   **/
+  public String getLastError() {
+    return lastError;
+  }
+
+  private Snapshot fetch() throws IOException {
+    try {
+      Snapshot snapshot = download(current);
+      current = snapshot;
+      lastError = null;
+      // refresh when 80% of the ttl has passed, to leave time for retries
+      scheduleRefresh((snapshot.expiry - snapshot.fetched) * 4 / 5);
+      return snapshot;
+    } catch (IOException | JsonLimits.LimitExceededException e) {
+      lastFailure = System.currentTimeMillis();
+      lastFailureOverLimit = e instanceof JsonLimits.LimitExceededException;
+      lastError = e.getMessage();
+      throw e;
+    }
+  }
+
+  /*
+   * The ttl for a copy, given what the upstream said about it. The upstream
+   * may ask for a shorter one than the settings, but not less than a
+   * second, so that a JWKS marked no-cache does not keep the refresh thread
+   * busy.
+   **/
+  private long ttlMillis(HttpURLConnection connection) {
+    long maxAge =
+        CacheControl.maxAge(
+            connection.getHeaderField("Cache-Control"), connection.getHeaderField("Age"));
+    if (maxAge < 0) return settings.ttlMillis;
+    return Math.min(settings.ttlMillis, Math.max(1000L, maxAge * 1000L));
+  }
+
+  private void scheduleRefresh(long delayMillis) {
+    if (!refreshScheduled.compareAndSet(false, true)) return;
+    refresher.schedule(this::refresh, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void refresh() {
+    refreshScheduled.set(false);
+    if (instances.get(key) != this) return;
+    // stop refreshing a JWKS that no policy has asked for in a while, and forget it
+    if (System.currentTimeMillis() - lastAccess > settings.ttlMillis + settings.maxStaleMillis) {
+      instances.remove(key, this);
+      return;
+    }
+    try {
+      Snapshot snapshot;
+      synchronized (fetchLock) {
+        snapshot = fetch();
+      }
+      warm(snapshot);
+    } catch (IOException | JsonLimits.LimitExceededException e) {
+      // keep serving the copy there is; retry after a tenth of the ttl
+      scheduleRefresh(Math.max(1000L, settings.ttlMillis / 10));
+    }
+  }
+
+  /*
+   * Fetches the JWKS, conditionally if there is a previous copy to
+   * validate. Returns the previous copy, renewed, if the upstream says it
+   * has not changed.
+   **/
+  private Snapshot download(Snapshot previous) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(uri).openConnection();
+    try {
+      connection.setConnectTimeout(settings.timeoutMillis);
+      connection.setReadTimeout(settings.timeoutMillis);
+      connection.setRequestProperty("Accept", "application/json");
+      if (previous != null && previous.etag != null) {
+        connection.setRequestProperty("If-None-Match", previous.etag);
+      }
+      if (previous != null && previous.lastModified != null) {
+        connection.setRequestProperty("If-Modified-Since", previous.lastModified);
+      }
+      int status = connection.getResponseCode();
+      long now = System.currentTimeMillis();
+      if (status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+        return previous.renew(now, now + ttlMillis(connection));
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException("unexpected status " + status + " from " + uri);
+      }
+      long length = connection.getContentLengthLong();
+      if (limits != null && length > limits.maxBytes) {
+        // refuse it without reading any of it
+        throw new JsonLimits.LimitExceededException(
+            "content is " + length + " bytes, over max-bytes=" + limits.maxBytes);
+      }
+      try (InputStream in = connection.getInputStream()) {
+        return new Snapshot(
+            JsonLimits.readAll(in, limits),
+            connection.getHeaderField("ETag"),
+            connection.getHeaderField("Last-Modified"),
+            now,
+            now + ttlMillis(connection));
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+}
@@ -0,0 +1,154 @@
+// JwksKeyIndex.java
+//
+// A map from kid to JWK for one JWKS document. The document is parsed once
+// when the index is built, but no certificate is decoded until a key is asked
+// for; after that, the transformed key is kept, so later lookups for the same
+// kid cost one hash lookup. Indexes are cached by a digest of the content, so
+// every policy that sees the same JWKS shares one index.
+//
+// The indexes are held under the same bounds, max-entries and max-bytes, as
+// the JwksCache the policy is configured with, and are weighed the same way.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.json.JavaxJson;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class JwksKeyIndex {
+  private static final Map<JwksCache.Settings, LruCache<String, JwksKeyIndex>> indexes =
+      new ConcurrentHashMap<>();
+
+  // the keys as parsed, never modified after construction
+  private final Map<String, Map<String, Object>> keys;
+  private final ConcurrentHashMap<String, Selected> transformed = new ConcurrentHashMap<>();
+  private final long weight;
+
+  /* a transformed key, and the size of the members stripped from it */
+  private static final class Selected {
+    final String json;
+    final long strippedBytes;
+
+    Selected(String json, long strippedBytes) {
+      this.json = json;
+      this.strippedBytes = strippedBytes;
+    }
+  }
+
+  private JwksKeyIndex(Map<String, Map<String, Object>> keys, long weight) {
+    this.keys = keys;
+    this.weight = weight;
+  }
+
+  private static LruCache<String, JwksKeyIndex> indexesFor(JwksCache.Settings settings) {
+    return indexes.computeIfAbsent(
+        settings,
+        s -> new LruCache<String, JwksKeyIndex>(s.maxEntries, s.maxBytes, index -> index.weight));
+  }
+
+  /*
+   * Returns the index for the given content, building it if it is not
+   * cached. The key must identify both the content and the options used to
+   * transform it. Pass a null cache to build an index without caching it,
+   * and null limits to build it whatever the size and shape of the content.
+   **/
+  public static JwksKeyIndex forContent(
+      byte[] jwksContent, JwksCache cache, String key, JsonLimits limits, TransformStats stats)
+      throws Exception {
+    LruCache<String, JwksKeyIndex> cached =
+        (cache != null) ? indexesFor(cache.getSettings()) : null;
+    JwksKeyIndex index = (cached != null) ? cached.get(key) : null;
+    if (index == null) {
+      long start = System.nanoTime();
+      index = build(jwksContent, limits);
+      stats.parseNanos += System.nanoTime() - start;
+      if (cached != null) {
+        cached.put(key, index);
+      }
+    }
+    return index;
+  }
+
+  static JwksKeyIndex build(byte[] jwksContent, JsonLimits limits) throws Exception {
+    Map<String, Object> jwksjson = TransformJwks.parseJwks(jwksContent, limits);
+    Object keylist = jwksjson.get("keys");
+    if (!(keylist instanceof List)) {
+      throw new IllegalStateException("jwks content has no keys");
+    }
+    Map<String, Map<String, Object>> keys = new HashMap<String, Map<String, Object>>();
+    for (Object item : (List<Object>) keylist) {
+      if (!(item instanceof Map)) continue;
+      Object kid = ((Map<String, Object>) item).get("kid");
+      // if kids repeat, the first one wins
+      if (kid instanceof String && !keys.containsKey(kid)) {
+        keys.put((String) kid, (Map<String, Object>) item);
+      }
+    }
+    // The parsed keys hold the content as UTF-16 strings, and the keys that
+    // are transformed add about as much again, with n and e; this is an
+    // estimate, as the weight of a JwksCache entry is.
+    return new JwksKeyIndex(keys, 6L * jwksContent.length);
+  }
+
+  /*
+   * Returns the transformed JWK with the given kid, as JSON, or null if
+   * there is no such key. The size of any members stripped from it is added
+   * to the stats, whether or not it was transformed just now.
+   **/
+  public String get(String kid, TransformOptions options, TransformStats stats)
+      throws Exception {
+    Selected selected = transformed.get(kid);
+    if (selected != null) {
+      stats.strippedBytes += selected.strippedBytes;
+      return selected.json;
+    }
+    Map<String, Object> jwk = keys.get(kid);
+    if (jwk == null) return null;
+    // transformKey modifies the map it is given, so work on a copy
+    Map<String, Object> copy = new LinkedHashMap<String, Object>(jwk);
+    long strippedBefore = stats.strippedBytes;
+    TransformJwks.transformKey(copy, options, stats);
+    long start = System.nanoTime();
+    String json = JavaxJson.toJson(copy);
+    stats.serializeNanos += System.nanoTime() - start;
+    Selected previous =
+        transformed.putIfAbsent(kid, new Selected(json, stats.strippedBytes - strippedBefore));
+    return (previous != null) ? previous.json : json;
+  }
+
+  public int size() {
+    return keys.size();
+  }
+
+  static void clearCache() {
+    for (LruCache<String, JwksKeyIndex> cached : indexes.values()) {
+      cached.clear();
+    }
+  }
+
+  /*
+   * The indexes held under the given settings.
+   **/
+  static LruCache<String, JwksKeyIndex> cached(JwksCache.Settings settings) {
+    return indexesFor(settings);
+  }
+}
@@ -0,0 +1,119 @@
+// LruCache.java
+//
+// A small, bounded, least-recently-used map that is safe to use from
+// several threads. It suits values that are expensive to compute but cheap
+// to hold, and that are looked up far more often than they change.
+//
+// It can also be bounded by weight, for values whose size varies: each value
+// is weighed once, when it is put, and the least recently used entries are
+// dropped until the total is within the bound.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+public class LruCache<K, V> {
+  private final Map<K, V> entries;
+  private final long maxWeight;
+  private final ToLongFunction<V> weigher;
+  private long totalWeight;
+
+  public LruCache(final int maxEntries) {
+    this(maxEntries, Long.MAX_VALUE, null);
+  }
+
+  /*
+   * A cache bounded by both the number of entries and their total weight.
+   * A value heavier than the bound on its own is not kept.
+   **/
+  public LruCache(final int maxEntries, long maxWeight, ToLongFunction<V> weigher) {
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+    this.entries =
+        new LinkedHashMap<K, V>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            if (size() <= maxEntries) return false;
+            totalWeight -= weigh(eldest.getValue());
+            return true;
+          }
+        };
+  }
+
+  private long weigh(V value) {
+    return (weigher != null) ? weigher.applyAsLong(value) : 0;
+  }
+
+  public V get(K key) {
+    synchronized (entries) {
+      return entries.get(key);
+    }
+  }
+
+  public void put(K key, V value) {
+    long weight = weigh(value);
+    synchronized (entries) {
+      if (weight > maxWeight) {
+        V previous = entries.remove(key);
+        if (previous != null) totalWeight -= weigh(previous);
+        return;
+      }
+      V previous = entries.put(key, value);
+      totalWeight += weight - ((previous != null) ? weigh(previous) : 0);
+      for (Iterator<V> it = entries.values().iterator();
+          totalWeight > maxWeight && it.hasNext(); ) {
+        totalWeight -= weigh(it.next());
+        it.remove();
+      }
+    }
+  }
+
+  /*
+   * The total weight of the entries, or 0 if the cache is not weighted.
+   **/
+  public long weight() {
+    synchronized (entries) {
+      return totalWeight;
+    }
+  }
+  /*
+   * A copy of the entries, from least to most recently used.
+   **/
+  public Map<K, V> snapshot() {
+    synchronized (entries) {
+      return new LinkedHashMap<K, V>(entries);
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+      totalWeight = 0;
+    }
+  }
+}
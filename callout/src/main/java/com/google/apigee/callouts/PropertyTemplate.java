@@ -0,0 +1,87 @@
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A property value, split once into literal text and variable references.
+ * A reference is wrapped in curlies, eg {apiproxy.name}, and may carry a
+ * default after a colon, eg {request.header.kid:none}. The name must not
+ * start with a colon, and must not contain spaces or curlies; anything
+ * else is treated as literal text.
+ **/
+public final class PropertyTemplate {
+  private final String[] literals; // one more than the number of references
+  private final String[] variables;
+  private final String[] defaults;
+
+  private PropertyTemplate(List<String> literals, List<String> variables, List<String> defaults) {
+    this.literals = literals.toArray(new String[0]);
+    this.variables = variables.toArray(new String[0]);
+    this.defaults = defaults.toArray(new String[0]);
+  }
+
+  public static PropertyTemplate compile(String spec) {
+    List<String> literals = new ArrayList<String>();
+    List<String> variables = new ArrayList<String>();
+    List<String> defaults = new ArrayList<String>();
+    StringBuilder literal = new StringBuilder();
+    int length = spec.length();
+    int i = 0;
+    while (i < length) {
+      char c = spec.charAt(i);
+      if (c == '{') {
+        int j = i + 1;
+        while (j < length && "{} ".indexOf(spec.charAt(j)) < 0) {
+          j++;
+        }
+        if (j < length && spec.charAt(j) == '}' && j > i + 1 && spec.charAt(i + 1) != ':') {
+          String ref = spec.substring(i + 1, j);
+          int colon = ref.indexOf(':');
+          literals.add(literal.toString());
+          literal.setLength(0);
+          variables.add((colon < 0) ? ref : ref.substring(0, colon));
+          defaults.add((colon < 0) ? null : ref.substring(colon + 1));
+          i = j + 1;
+          continue;
+        }
+      }
+      literal.append(c);
+      i++;
+    }
+    literals.add(literal.toString());
+    return new PropertyTemplate(literals, variables, defaults);
+  }
+
+  public String resolve(MessageContext msgCtxt) {
+    if (variables.length == 0) return literals[0];
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < variables.length; i++) {
+      sb.append(literals[i]);
+      Object v = msgCtxt.getVariable(variables[i]);
+      if (v != null) {
+        sb.append((String) v);
+      } else if (defaults[i] != null) {
+        sb.append(defaults[i]);
+      }
+    }
+    sb.append(literals[variables.length]);
+    return sb.toString();
+  }
+}
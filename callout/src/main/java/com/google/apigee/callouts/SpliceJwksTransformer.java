@@ -0,0 +1,238 @@
+// SpliceJwksTransformer.java
+//
+// An alternative to TransformJwks.transform() that leaves the input as it is,
+// except to insert n and e into the keys that need them. It scans the JWKS
+// once with a streaming parser, noting where each such key's last member
+// ends, and then copies the original text around those points. Member order,
+// whitespace and number formatting are all kept, and a JWKS with nothing to
+// add is returned unchanged.
+//
+// Anything the scan cannot handle exactly as the tree-based path would, such
+// as a key with n but no e, sends the whole document down that path instead.
+//
+// ------------------------------------------------------------------
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.json.JavaxJson;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.json.stream.JsonParser;
+
+public class SpliceJwksTransformer {
+
+  private SpliceJwksTransformer() {}
+
+  /* n and e to insert at an offset in the text */
+  private static final class Splice {
+    final int offset;
+    final CertificateKeyCache.RsaComponents components;
+
+    Splice(int offset, CertificateKeyCache.RsaComponents components) {
+      this.offset = offset;
+      this.components = components;
+    }
+  }
+
+  /* what the scan has seen of one key */
+  private static final class KeyScan {
+    Object kty;
+    boolean hasX5c;
+    String x5c; // the first certificate, or null if the chain is empty
+    Object n;
+    Object e;
+    int lastMemberEnd;
+  }
+
+  public static byte[] transform(byte[] jwksContent, TransformOptions options, TransformStats stats)
+      throws Exception {
+    String text = new String(jwksContent, StandardCharsets.UTF_8);
+    TransformStats spliceStats = new TransformStats();
+    long start = System.nanoTime();
+    List<Splice> splices = scan(text, options, spliceStats);
+    spliceStats.parseNanos += System.nanoTime() - start;
+    if (splices == null) {
+      return TransformJwks.transformTree(jwksContent, options, stats);
+    }
+    stats.add(spliceStats);
+    if (splices.isEmpty()) {
+      return jwksContent;
+    }
+    start = System.nanoTime();
+    StringBuilder sb = new StringBuilder(text.length() + splices.size() * 400);
+    int copied = 0;
+    for (Splice splice : splices) {
+      sb.append(text, copied, splice.offset);
+      // base64url needs no escaping
+      sb.append(",\"n\":\"")
+          .append(splice.components.getModulus())
+          .append("\",\"e\":\"")
+          .append(splice.components.getExponent())
+          .append('"');
+      copied = splice.offset;
+    }
+    sb.append(text, copied, text.length());
+    byte[] output = sb.toString().getBytes(StandardCharsets.UTF_8);
+    stats.serializeNanos += System.nanoTime() - start;
+    return output;
+  }
+
+  /*
+   * Returns the places to insert n and e, in order, or null if the document
+   * must go through the tree-based path. A document that is not valid JSON
+   * fails here, as it would there.
+   **/
+  private static List<Splice> scan(String text, TransformOptions options, TransformStats stats)
+      throws Exception {
+    List<Splice> splices = new ArrayList<Splice>();
+    boolean sawKeys = false;
+    try (JsonParser parser =
+        JsonLimits.limit(JavaxJson.createParser(new StringReader(text)), options.limits)) {
+      if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT) {
+        return null;
+      }
+      int depth = 1;
+      while (depth > 0) {
+        JsonParser.Event event = parser.next();
+        if (depth == 1 && event == JsonParser.Event.KEY_NAME && parser.getString().equals("keys")) {
+          if (sawKeys || parser.next() != JsonParser.Event.START_ARRAY) {
+            return null;
+          }
+          sawKeys = true;
+          while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+            if (event != JsonParser.Event.START_OBJECT) {
+              return null;
+            }
+            KeyScan key = scanKey(parser);
+            if (key == null || !plan(key, options, stats, splices)) {
+              return null;
+            }
+          }
+          continue;
+        }
+        depth += depthChange(event);
+      }
+      // let the parser reject anything after the closing brace
+      while (parser.hasNext()) {
+        parser.next();
+      }
+    }
+    return sawKeys ? splices : null;
+  }
+
+  /*
+   * Reads one key, from just after its opening brace to its closing brace.
+   * Returns null if the key has a member the scan cannot account for, or
+   * names one of the members that matter more than once.
+   **/
+  private static KeyScan scanKey(JsonParser parser) {
+    KeyScan key = new KeyScan();
+    JsonParser.Event event;
+    while ((event = parser.next()) != JsonParser.Event.END_OBJECT) {
+      String name = parser.getString();
+      event = parser.next();
+      if (name.equals("x5c")) {
+        if (key.hasX5c || event != JsonParser.Event.START_ARRAY) return null;
+        key.hasX5c = true;
+        event = parser.next();
+        if (event == JsonParser.Event.VALUE_STRING) {
+          key.x5c = parser.getString();
+          skipValue(parser, 1);
+        } else if (event != JsonParser.Event.END_ARRAY) {
+          return null;
+        }
+      } else if (name.equals("kty") || name.equals("n") || name.equals("e")) {
+        if (event == JsonParser.Event.START_OBJECT || event == JsonParser.Event.START_ARRAY) {
+          return null;
+        }
+        Object value = (event == JsonParser.Event.VALUE_STRING) ? parser.getString() : event;
+        if (name.equals("kty")) {
+          if (key.kty != null) return null;
+          key.kty = value;
+        } else if (name.equals("n")) {
+          if (key.n != null) return null;
+          key.n = value;
+        } else {
+          if (key.e != null) return null;
+          key.e = value;
+        }
+      } else if (event == JsonParser.Event.START_OBJECT || event == JsonParser.Event.START_ARRAY) {
+        skipValue(parser, 1);
+      }
+      key.lastMemberEnd = (int) parser.getLocation().getStreamOffset();
+    }
+    return key;
+  }
+
+  /* Skips to the end of a value that has already been entered to the given depth. */
+  private static void skipValue(JsonParser parser, int depth) {
+    while (depth > 0) {
+      depth += depthChange(parser.next());
+    }
+  }
+
+  private static int depthChange(JsonParser.Event event) {
+    switch (event) {
+      case START_OBJECT:
+      case START_ARRAY:
+        return 1;
+      case END_OBJECT:
+      case END_ARRAY:
+        return -1;
+      default:
+        return 0;
+    }
+  }
+
+  /*
+   * Decides what to do with one key, counting it the way
+   * TransformJwks.transformKey does. Returns false if the key needs the
+   * tree-based path.
+   **/
+  private static boolean plan(
+      KeyScan key, TransformOptions options, TransformStats stats, List<Splice> splices)
+      throws Exception {
+    stats.keysSeen++;
+    if (key.kty != null && !(key.kty instanceof String)) return false;
+    if (!"RSA".equals(key.kty) || key.x5c == null) {
+      stats.keysSkipped++;
+      return true;
+    }
+    // a key with only one of n and e is rewritten in full by the tree path
+    if ((key.n == null) != (key.e == null)) return false;
+    CertificateKeyCache.RsaComponents components;
+    try {
+      components = TransformJwks.rsaComponents(key.x5c, stats);
+    } catch (BadKeyException e) {
+      if (!options.skipBadKeys) throw e;
+      stats.keysSkipped++;
+      return true;
+    }
+    if (key.n != null) {
+      // the tree path would replace them; that changes nothing only if they agree
+      if (!components.getModulus().equals(key.n) || !components.getExponent().equals(key.e)) {
+        return false;
+      }
+    } else {
+      splices.add(new Splice(key.lastMemberEnd, components));
+    }
+    stats.keysTransformed++;
+    return true;
+  }
+}
@@ -31,27 +31,184 @@ import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
 import com.google.apigee.json.JavaxJson;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.PublicKey;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import javax.json.stream.JsonParser;
 
 public class TransformJwks extends CalloutBase implements Execution {
+  private static final ForkJoinPool keyPool =
+      new ForkJoinPool(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8)));
+
+  /* names a snapshot file to keep the caches in, for the whole process */
+  static final String SNAPSHOT_FILE_PROPERTY = "com.google.apigee.callouts.snapshot-file";
+
+  static {
+    try {
+      Path snapshotFile = snapshotFile();
+      if (snapshotFile != null) {
+        CacheSnapshot.loadOnce(snapshotFile);
+      }
+    } catch (IllegalStateException e) {
+      // reported when a policy is configured
+    }
+  }
+
+  enum Mode {
+    TREE,
+    STREAMING,
+    SPLICE;
+
+    static Mode parse(String value) {
+      if (value == null || value.trim().equals("")) return TREE;
+      switch (value.trim().toLowerCase()) {
+        case "tree":
+          return TREE;
+        case "streaming":
+          return STREAMING;
+        case "splice":
+          return SPLICE;
+        default:
+          throw new IllegalStateException("unknown transform-mode: " + value.trim());
+      }
+    }
+  }
+
+  enum ContentIo {
+    STRING,
+    STREAM;
+
+    static ContentIo parse(String value) {
+      if (value == null || value.trim().equals("")) return STRING;
+      switch (value.trim().toLowerCase()) {
+        case "string":
+          return STRING;
+        case "stream":
+          return STREAM;
+        default:
+          throw new IllegalStateException("unknown content-io: " + value.trim());
+      }
+    }
+  }
+
+  private JwksCache cache;
+  private TransformOptions options = new TransformOptions();
+  private ContentIo contentIo = ContentIo.STRING;
+  private boolean selectByKid;
+  private JwksFetcher.Settings fetchSettings;
+  private JsonLimits limits;
+  private IllegalStateException configurationError;
+  static final int MAX_VALIDATED = 16;
+
+  // by upstream URL, so that one upstream's validators never match another's JWKS
+  private final LruCache<String, Validated> validated = new LruCache<>(MAX_VALIDATED);
+
+  /*
+   * The ETag and Last-Modified that an upstream sent with a JWKS, along with
+   * what this policy made of it. When the same upstream later answers 304,
+   * or sends the same strong ETag, the stored result is used as it is.
+   **/
+  private static final class Validated {
+    final String etag;
+    final String lastModified;
+    final byte[] content;
+    final String digest;
+    final JwksCache.Entry output; // null when selecting by kid
+
+    Validated(
+        String etag, String lastModified, byte[] content, String digest, JwksCache.Entry output) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.content = content;
+      this.digest = digest;
+      this.output = output;
+    }
+  }
+
   public TransformJwks(Map properties) {
     super(properties);
+    try {
+      configure();
+    } catch (IllegalStateException exc1) {
+      this.configurationError = exc1;
+    }
+  }
+
+  private void configure() {
+    JwksCache.Settings settings = JwksCache.Settings.parse(this.properties.get("cache"));
+    this.cache = (settings != null) ? JwksCache.forSettings(settings) : null;
+    this.options = TransformOptions.fromProperties(this.properties);
+    this.contentIo = ContentIo.parse(this.properties.get("content-io"));
+    this.selectByKid = this.properties.get("kid") != null;
+    this.limits = options.limits;
+    if (this.properties.get("snapshot-file") != null) {
+      throw new IllegalStateException(
+          "snapshot-file is not a policy property; set the system property "
+              + SNAPSHOT_FILE_PROPERTY);
+    }
+    Path snapshotFile = snapshotFile();
+    if (snapshotFile != null) {
+      CacheSnapshot.loadOnce(snapshotFile);
+    }
+    if (this.cache != null) {
+      CacheSnapshot.restoreInto(this.cache);
+    }
+    if (this.properties.get("jwks-uri") != null) {
+      this.fetchSettings = JwksFetcher.Settings.parse(this.properties.get("fetch"));
+    }
+  }
+
+  /*
+   * The file named by the system property, or null for none. The callout
+   * writes to this file, so only the process, and never a proxy, names it.
+   **/
+  static Path snapshotFile() {
+    String value = System.getProperty(SNAPSHOT_FILE_PROPERTY);
+    if (value == null || value.trim().equals("")) return null;
+    try {
+      return Paths.get(value.trim());
+    } catch (InvalidPathException e) {
+      throw new IllegalStateException("invalid " + SNAPSHOT_FILE_PROPERTY + ": " + value.trim());
+    }
+  }
+
+  /*
+   * Saves the caches to the snapshot file shortly, if there is one; called
+   * whenever something worth keeping is added to them.
+   **/
+  private static void saveSnapshotLater() {
+    try {
+      Path snapshotFile = snapshotFile();
+      if (snapshotFile != null) {
+        CacheSnapshot.saveLater(snapshotFile);
+      }
+    } catch (IllegalStateException e) {
+      // reported when a policy is configured
+    }
   }
 
   public static X509Certificate x5cToCert(String x5c) throws Exception {
     byte[] der = Base64.getDecoder().decode(x5c);
-    ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(der);
     try {
-      CertificateFactory certFactory = CertificateFactory.getInstance("X.509", "BC");
-      Certificate certificate = certFactory.generateCertificate(byteArrayInputStream);
+      Certificate certificate = CryptoFactories.generateCertificate(der);
       return (X509Certificate) certificate;
     } catch (CertificateException e) {
       throw new Exception("Unable to convert x5c value to X509Certificate: " + e, e);
@@ -70,53 +227,621 @@ public class TransformJwks extends CalloutBase implements Execution {
   protected static String encode(BigInteger value) {
     byte[] bytes = value.toByteArray();
     bytes = maybeTrimLeadingZero(bytes);
-    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    return encode(bytes);
+  }
+
+  protected static String encode(byte[] unsignedValue) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(unsignedValue);
+  }
+
+  /*
+   * Returns the encoded modulus and exponent for the RSA key in the given
+   * x5c value, parsing the certificate only if it is not already cached.
+   **/
+  protected static CertificateKeyCache.RsaComponents rsaComponents(
+      String x5c, TransformStats stats) throws Exception {
+    CertificateKeyCache keyCache = CertificateKeyCache.getInstance();
+    CertificateKeyCache.RsaComponents components = keyCache.get(x5c);
+    if (components != null) {
+      stats.keyCacheHits++;
+      return components;
+    }
+    // a certificate that failed to decode recently fails again, without a parse
+    String digest = JwksCache.digest(x5c);
+    BadKeyException failure = keyCache.getFailure(digest);
+    if (failure != null) {
+      throw failure;
+    }
+    stats.keyCacheMisses++;
+    try {
+      components = decodeRsaComponents(x5c, stats);
+    } catch (BadKeyException e) {
+      keyCache.putFailure(digest, e);
+      throw e;
+    }
+    keyCache.put(x5c, components);
+    saveSnapshotLater();
+    return components;
+  }
+
+  /*
+   * Tries the lightweight DER reader first, and falls back to a full
+   * X.509 parse for anything it does not handle.
+   **/
+  protected static CertificateKeyCache.RsaComponents decodeRsaComponents(String x5c)
+      throws Exception {
+    return decodeRsaComponents(x5c, new TransformStats());
+  }
+
+  protected static CertificateKeyCache.RsaComponents decodeRsaComponents(
+      String x5c, TransformStats stats) throws Exception {
+    long start = System.nanoTime();
+    byte[][] integers = null;
+    try {
+      integers = DerRsaKeyReader.readIntegers(Base64.getDecoder().decode(x5c));
+    } catch (IllegalArgumentException e) {
+      // not valid base64; let x5cToCert report it
+    }
+    if (integers != null) {
+      long decoded = System.nanoTime();
+      stats.decodeNanos += decoded - start;
+      CertificateKeyCache.RsaComponents components =
+          new CertificateKeyCache.RsaComponents(encode(integers[0]), encode(integers[1]));
+      stats.encodeNanos += System.nanoTime() - decoded;
+      return components;
+    }
+    PublicKey key;
+    try {
+      key = x5cToCert(x5c).getPublicKey();
+    } catch (Exception e) {
+      throw new BadKeyException("invalid x5c: " + e.getMessage(), e);
+    }
+    if (!(key instanceof RSAPublicKey)) {
+      throw new BadKeyException("x5c does not hold an RSA key: " + key.getAlgorithm());
+    }
+    RSAPublicKey publicKey = (RSAPublicKey) key;
+    long decoded = System.nanoTime();
+    stats.decodeNanos += decoded - start;
+    CertificateKeyCache.RsaComponents components =
+        new CertificateKeyCache.RsaComponents(
+            encode(publicKey.getModulus()), encode(publicKey.getPublicExponent()));
+    stats.encodeNanos += System.nanoTime() - decoded;
+    return components;
   }
 
   protected static String transform(String jwksContent) throws Exception {
+    return transform(jwksContent, new TransformStats());
+  }
+
+  /*
+   * If the JWK is an RSA key with an x5c, sets n and e from the first
+   * certificate in the chain. Modifies the map in place.
+   **/
+  protected static void transformKey(Map<String, Object> jwk, TransformStats stats)
+      throws Exception {
+    stats.keysSeen++;
+    String kty = (String) jwk.get("kty");
+    if ("RSA".equals(kty)) {
+      List<String> certificateChain = (List<String>) jwk.get("x5c");
+      if (certificateChain != null && certificateChain.size() > 0) {
+        // extract Modulus and Exponent
+        String x5c = certificateChain.get(0);
+        CertificateKeyCache.RsaComponents components = rsaComponents(x5c, stats);
+        jwk.put("n", components.n);
+        jwk.put("e", components.e);
+        stats.keysTransformed++;
+        return;
+      }
+    }
+    stats.keysSkipped++;
+  }
+
+  /*
+   * Transforms the key, then removes any members the options say to strip.
+   * With skip-bad-keys, a key whose certificate does not decode is left as
+   * it is, and counted as skipped.
+   **/
+  protected static void transformKey(
+      Map<String, Object> jwk, TransformOptions options, TransformStats stats) throws Exception {
+    try {
+      transformKey(jwk, stats);
+    } catch (BadKeyException e) {
+      if (!options.skipBadKeys) throw e;
+      stats.keysSkipped++;
+      return;
+    }
+    options.strip(jwk, stats);
+  }
+
+  protected static String transform(String jwksContent, TransformStats stats) throws Exception {
+    long start = System.nanoTime();
     Map<String, Object> jwksjson = JavaxJson.fromJson(jwksContent, Map.class);
+    stats.parseNanos += System.nanoTime() - start;
     List<Object> keylist = (List<Object>) jwksjson.get("keys");
-    for (Object item : keylist) {
-      Map<String, Object> jwk = (Map<String, Object>) item;
-      String kty = (String) jwk.get("kty");
-      if ("RSA".equals(kty)) {
-        List<String> certificateChain = (List<String>) jwk.get("x5c");
-        if (certificateChain != null && certificateChain.size() > 0) {
-          // extract Modulus and Exponent
-          String x5c = certificateChain.get(0);
-          RSAPublicKey publicKey = (RSAPublicKey) x5cToCert(x5c).getPublicKey();
-          jwk.put("n", encode(publicKey.getModulus()));
-          jwk.put("e", encode(publicKey.getPublicExponent()));
+    transformKeys(keylist, new TransformOptions(), stats);
+    // re-serialize
+    start = System.nanoTime();
+    String json = JavaxJson.toJson(jwksjson);
+    stats.serializeNanos += System.nanoTime() - start;
+    return json;
+  }
+
+  /*
+   * Transforms each key in the list, in place. When there are at least
+   * parallelThreshold keys, the keys are decoded concurrently on a shared,
+   * bounded pool; the list and its order are unchanged either way.
+   **/
+  protected static void transformKeys(
+      List<Object> keylist, final TransformOptions options, TransformStats stats)
+      throws Exception {
+    int parallelThreshold = options.parallelThreshold;
+    if (parallelThreshold <= 0 || keylist.size() < parallelThreshold) {
+      for (Object item : keylist) {
+        transformKey((Map<String, Object>) item, options, stats);
+      }
+      return;
+    }
+    List<Callable<TransformStats>> tasks = new ArrayList<Callable<TransformStats>>();
+    for (final Object item : keylist) {
+      tasks.add(
+          () -> {
+            TransformStats keyStats = new TransformStats();
+            transformKey((Map<String, Object>) item, options, keyStats);
+            return keyStats;
+          });
+    }
+    for (Future<TransformStats> future : keyPool.invokeAll(tasks)) {
+      try {
+        stats.add(future.get());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        throw (cause instanceof Exception) ? (Exception) cause : e;
+      }
+    }
+  }
+
+  protected static byte[] transform(byte[] jwksContent, TransformStats stats) throws Exception {
+    return transform(jwksContent, new TransformOptions(), stats);
+  }
+
+  /*
+   * Parses the content into a tree, checking it against the limits, if any,
+   * as it goes.
+   **/
+  static Map<String, Object> parseJwks(byte[] jwksContent, JsonLimits limits) {
+    try (JsonParser parser =
+        JsonLimits.limit(JavaxJson.createParser(new ByteArrayInputStream(jwksContent)), limits)) {
+      if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT) {
+        throw new IllegalStateException("jwks content is not a JSON object");
+      }
+      Map<String, Object> jwksjson = new LinkedHashMap<String, Object>();
+      JsonParser.Event event;
+      while ((event = parser.next()) != JsonParser.Event.END_OBJECT) {
+        String name = parser.getString();
+        // the streaming transform cannot take one keys member over another, so neither does this
+        if (name.equals("keys") && jwksjson.containsKey("keys")) {
+          throw new IllegalStateException("jwks content has more than one keys member");
         }
+        jwksjson.put(name, JavaxJson.readValue(parser));
       }
+      // let the parser reject anything after the closing brace
+      while (parser.hasNext()) {
+        parser.next();
+      }
+      return jwksjson;
     }
+  }
+
+  protected static byte[] transformTree(
+      byte[] jwksContent, TransformOptions options, TransformStats stats) throws Exception {
+    long start = System.nanoTime();
+    Map<String, Object> jwksjson = parseJwks(jwksContent, options.limits);
+    stats.parseNanos += System.nanoTime() - start;
+    List<Object> keylist = (List<Object>) jwksjson.get("keys");
+    transformKeys(keylist, options, stats);
     // re-serialize
-    return JavaxJson.toJson(jwksjson);
+    start = System.nanoTime();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(jwksContent.length + 1024);
+    JavaxJson.toJson(jwksjson, out);
+    stats.serializeNanos += System.nanoTime() - start;
+    return out.toByteArray();
+  }
+
+  protected static byte[] transform(
+      byte[] jwksContent, TransformOptions options, TransformStats stats) throws Exception {
+    if (options.mode == Mode.STREAMING) {
+      return StreamingJwksTransformer.transform(jwksContent, options, stats);
+    }
+    if (options.mode == Mode.SPLICE) {
+      return SpliceJwksTransformer.transform(jwksContent, options, stats);
+    }
+    return transformTree(jwksContent, options, stats);
+  }
+
+  /*
+   * Pass the digest of the content if it is already known, or null.
+   **/
+  private JwksCache.Entry transformWithCache(
+      byte[] jwksContent, String digest, MessageContext msgCtxt) throws Exception {
+    TransformStats stats = new TransformStats();
+    if (limits != null) {
+      limits.checkSize(jwksContent);
+    }
+    JwksCache.Entry entry = null;
+    String key = null;
+    if (cache != null) {
+      key = cacheKey((digest != null) ? digest : JwksCache.digest(jwksContent));
+      entry = cache.get(key);
+      msgCtxt.setVariable(varName("cache_hit"), Boolean.toString(entry != null));
+    }
+    if (entry == null) {
+      if (cache != null) {
+        boolean[] loaded = new boolean[1];
+        entry = loadIntoCache(jwksContent, key, stats, loaded);
+        // another thread was already transforming the same content
+        msgCtxt.setVariable(varName("coalesced"), Boolean.toString(!loaded[0]));
+      } else {
+        byte[] output = transform(jwksContent, options, stats);
+        entry = JwksCache.Entry.of(output, stats.strippedBytes);
+      }
+    }
+    msgCtxt.setVariable(varName("keycache_hits"), Integer.toString(stats.keyCacheHits));
+    msgCtxt.setVariable(varName("keycache_misses"), Integer.toString(stats.keyCacheMisses));
+    setMetricsVariables(stats, msgCtxt);
+    if (!options.stripMembers.isEmpty()) {
+      msgCtxt.setVariable(varName("bytes_saved"), Long.toString(entry.getStrippedBytes()));
+    }
+    return entry;
+  }
+
+  /*
+   * Returns the cached result for the content, transforming it if there is
+   * none. Sets loaded[0] if this call ran the transform.
+   **/
+  private JwksCache.Entry loadIntoCache(
+      byte[] jwksContent, String key, TransformStats stats, boolean[] loaded) throws Exception {
+    JwksCache.Entry entry =
+        cache.load(
+            key,
+            () -> {
+              loaded[0] = true;
+              byte[] output = transform(jwksContent, options, stats);
+              return JwksCache.Entry.of(output, stats.strippedBytes);
+            });
+    if (loaded[0]) {
+      saveSnapshotLater();
+    }
+    return entry;
+  }
+
+  /*
+   * Prepares the result for a copy that the fetcher has just refreshed, so
+   * that the next request finds it cached: the whole transformed JWKS, or
+   * the index to select a key from.
+   **/
+  private void warm(JwksFetcher.Snapshot snapshot) throws Exception {
+    byte[] content = snapshot.getContent();
+    String key = cacheKey(snapshot.getDigest());
+    if (limits != null) {
+      limits.checkSize(content);
+    }
+    if (selectByKid) {
+      JwksKeyIndex.forContent(content, cache, key, limits, new TransformStats());
+    } else {
+      loadIntoCache(content, key, new TransformStats(), new boolean[1]);
+    }
+  }
+
+  /*
+   * Identifies what warm() prepares, so that a fetcher shared by policies
+   * configured alike calls it once per refresh.
+   **/
+  private String warmerKey() {
+    return cache.getSettings().id() + "|" + cacheKey("") + (selectByKid ? "|kid" : "");
+  }
+
+  /*
+   * Results produced under different options must not be confused, so
+   * the options that affect the output are part of the cache key. So are
+   * the limits, or a policy with limits could be served a result that a
+   * policy without them produced from content over those limits.
+   **/
+  private String cacheKey(String digest) {
+    String fingerprint = options.fingerprint();
+    if (limits != null) {
+      fingerprint = fingerprint.equals("") ? limits.id() : fingerprint + ";" + limits.id();
+    }
+    return fingerprint.equals("") ? digest : digest + ";" + fingerprint;
+  }
+
+  /*
+   * Returns the transformed JWK with the given kid. Only that key is
+   * decoded; the index that locates it is shared across requests that
+   * carry the same JWKS content, unless caching is disabled.
+   **/
+  private String selectKey(
+      byte[] jwksContent, String digest, String kid, MessageContext msgCtxt) throws Exception {
+    TransformStats stats = new TransformStats();
+    String key = null;
+    if (cache != null) {
+      key = cacheKey((digest != null) ? digest : JwksCache.digest(jwksContent));
+    }
+    if (limits != null) {
+      limits.checkSize(jwksContent);
+    }
+    String jwk =
+        JwksKeyIndex.forContent(jwksContent, cache, key, limits, stats).get(kid, options, stats);
+    msgCtxt.setVariable(varName("keycache_hits"), Integer.toString(stats.keyCacheHits));
+    msgCtxt.setVariable(varName("keycache_misses"), Integer.toString(stats.keyCacheMisses));
+    setMetricsVariables(stats, msgCtxt);
+    if (!options.stripMembers.isEmpty()) {
+      msgCtxt.setVariable(varName("bytes_saved"), Long.toString(stats.strippedBytes));
+    }
+    if (jwk == null) {
+      throw new IllegalStateException("no key matches kid: " + kid);
+    }
+    return jwk;
+  }
+
+  private String resolveKid(MessageContext msgCtxt) {
+    String kid = getSimpleProperty("kid", msgCtxt);
+    if (kid == null) {
+      throw new IllegalStateException("kid resolves to null");
+    }
+    return kid;
+  }
+
+  /*
+   * Serves the JWKS from the URI in jwks-uri, rather than from a message
+   * or variable. The fetched copy is shared across requests, and refreshed
+   * in the background; see JwksFetcher.
+   **/
+  private ExecutionResult executeFetch(MessageContext msgCtxt) throws Exception {
+    String uri = getSimpleProperty("jwks-uri", msgCtxt);
+    if (uri == null) {
+      throw new IllegalStateException("jwks-uri resolves to null");
+    }
+    JwksFetcher fetcher = JwksFetcher.forUri(uri, fetchSettings, limits);
+    if (cache != null) {
+      fetcher.addWarmer(warmerKey(), this::warm);
+    }
+    JwksFetcher.Snapshot snapshot;
+    try {
+      snapshot = fetcher.get();
+    } catch (IOException e) {
+      throw new IllegalStateException("jwks fetch failed: " + e.getMessage(), e);
+    }
+    msgCtxt.setVariable(varName("stale"), Boolean.toString(snapshot.isStale()));
+    msgCtxt.setVariable(varName("max_age"), Long.toString(snapshot.getMaxAge()));
+    if (snapshot.isStale() && fetcher.getLastError() != null) {
+      msgCtxt.setVariable(varName("fetch_error"), fetcher.getLastError());
+    }
+    String output =
+        selectByKid
+            ? selectKey(snapshot.getContent(), snapshot.getDigest(), resolveKid(msgCtxt), msgCtxt)
+            : transformWithCache(snapshot.getContent(), snapshot.getDigest(), msgCtxt)
+                .getContent();
+    String destinationVariable = getDestination(msgCtxt);
+    if (destinationVariable == null) {
+      destinationVariable = varName("output");
+    }
+    msgCtxt.setVariable(destinationVariable, output);
+    return ExecutionResult.SUCCESS;
+  }
+
+  private static boolean isBlank(byte[] content) {
+    for (byte b : content) {
+      if (b != ' ' && b != '\t' && b != '\r' && b != '\n') return false;
+    }
+    return true;
+  }
+
+  /*
+   * The message that carries the JWKS, if the source is a message or the
+   * content of one. Its headers say whether the JWKS has changed.
+   **/
+  private static Message upstreamMessage(
+      String sourceVariable, Object source, MessageContext msgCtxt) {
+    if (source instanceof Message) return (Message) source;
+    if (sourceVariable.endsWith(".content")) {
+      Object message =
+          msgCtxt.getVariable(sourceVariable.substring(0, sourceVariable.length() - 8));
+      if (message instanceof Message) return (Message) message;
+    }
+    return null;
+  }
+
+  private static String messageName(String sourceVariable, Object source) {
+    return (source instanceof Message)
+        ? sourceVariable
+        : sourceVariable.substring(0, sourceVariable.length() - 8);
+  }
+
+  private static String header(Message message, String name) {
+    List<String> values = message.getHeaders(name);
+    return (values == null || values.isEmpty()) ? null : String.join(",", values);
+  }
+
+  /*
+   * The URL the upstream message came from: the upstream-url property if
+   * set, or else target.url. Null if neither resolves, in which case
+   * nothing is stored for, or reused from, the upstream.
+   **/
+  private String upstreamUrl(MessageContext msgCtxt) {
+    String url = getSimpleProperty("upstream-url", msgCtxt);
+    if (url != null) return url;
+    Object targetUrl = msgCtxt.getVariable("target.url");
+    return (targetUrl != null && !targetUrl.toString().equals("")) ? targetUrl.toString() : null;
+  }
+
+  /*
+   * Returns the stored result if the upstream says the JWKS has not
+   * changed, or null. A 304 that matches nothing stored is an error, as
+   * there is no JWKS to transform.
+   **/
+  private Validated reusable(Message upstream, String upstreamUrl, String status) {
+    Validated v = (upstreamUrl != null) ? validated.get(upstreamUrl) : null;
+    String etag = upstream.getHeader("ETag");
+    if ("304".equals(status)) {
+      String lastModified = upstream.getHeader("Last-Modified");
+      if (etag == null && lastModified == null) {
+        throw new IllegalStateException(
+            "upstream returned 304 without an ETag or Last-Modified to match");
+      }
+      if (v != null
+          && (etag == null || etag.equals(v.etag))
+          && (etag != null || lastModified.equals(v.lastModified))) {
+        return v;
+      }
+      throw new IllegalStateException("upstream returned 304, and no jwks is stored for it");
+    }
+    // only a strong ETag promises the same bytes
+    if (v != null
+        && etag != null
+        && !etag.startsWith("W/")
+        && etag.equals(v.etag)
+        && (status == null || status.equals("200"))) {
+      return v;
+    }
+    return null;
+  }
+
+  private static void writeOutput(
+      Object source,
+      String sourceVariable,
+      boolean useStream,
+      byte[] output,
+      String content,
+      MessageContext msgCtxt) {
+    if (useStream) {
+      ((Message) source).setContent(new ByteArrayInputStream(output));
+    } else if (source instanceof Message) {
+      ((Message) source).setContent(content);
+    } else {
+      msgCtxt.setVariable(sourceVariable, content);
+    }
   }
 
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
     try {
+      if (configurationError != null) {
+        throw configurationError;
+      }
+      if (fetchSettings != null) {
+        return executeFetch(msgCtxt);
+      }
       String sourceVariable = getSource(msgCtxt);
       if (sourceVariable == null) {
         sourceVariable = "message.content";
       }
 
       Object source = msgCtxt.getVariable(sourceVariable);
-      if (source == null) {
+      Message upstream = upstreamMessage(sourceVariable, source, msgCtxt);
+      if (source == null && upstream == null) {
         throw new IllegalStateException("source variable resolves to null");
       }
-      String jwksContent =
-          (source instanceof Message) ? ((Message) source).getContent() : (String) source;
-      if (jwksContent == null || jwksContent.trim().equals("")) {
-        throw new IllegalStateException("empty jwks content");
+      boolean useStream = (source instanceof Message) && contentIo == ContentIo.STREAM;
+      String destinationVariable = selectByKid ? getDestination(msgCtxt) : null;
+
+      Validated reuse = null;
+      String statusVariable = null;
+      String status = null;
+      String upstreamUrl = null;
+      if (upstream != null) {
+        upstreamUrl = upstreamUrl(msgCtxt);
+        long maxAge =
+            CacheControl.maxAge(header(upstream, "Cache-Control"), upstream.getHeader("Age"));
+        if (maxAge >= 0) {
+          msgCtxt.setVariable(varName("max_age"), Long.toString(maxAge));
+        }
+        statusVariable = messageName(sourceVariable, source) + ".status.code";
+        Object statusCode = msgCtxt.getVariable(statusVariable);
+        status = (statusCode != null) ? statusCode.toString() : null;
+        reuse = reusable(upstream, upstreamUrl, status);
+        msgCtxt.setVariable(varName("not_modified"), Boolean.toString(reuse != null));
       }
-      String transformedJwks = transform(jwksContent);
-      if (source instanceof Message) {
-        ((Message) source).setContent(transformedJwks);
+
+      byte[] jwksContent;
+      String digest = null;
+      if (reuse != null) {
+        jwksContent = reuse.content;
+        digest = reuse.digest;
+        if ("304".equals(status)) {
+          // the client gets the stored JWKS, so it must not see a 304
+          msgCtxt.setVariable(statusVariable, "200");
+          if (source == null) {
+            source = upstream;
+            useStream = contentIo == ContentIo.STREAM;
+          }
+        }
       } else {
-        msgCtxt.setVariable(sourceVariable, transformedJwks);
+        if (source == null) {
+          throw new IllegalStateException("source variable resolves to null");
+        }
+        if (useStream) {
+          jwksContent = JsonLimits.readAll(((Message) source).getContentAsStream(), limits);
+        } else {
+          String content =
+              (source instanceof Message) ? ((Message) source).getContent() : (String) source;
+          if (content != null && limits != null) {
+            limits.checkSize(content);
+          }
+          jwksContent = (content != null) ? content.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        }
+        if (isBlank(jwksContent)) {
+          throw new IllegalStateException("empty jwks content");
+        }
+      }
+
+      String etag = (upstream != null) ? upstream.getHeader("ETag") : null;
+      String lastModified = (upstream != null) ? upstream.getHeader("Last-Modified") : null;
+      boolean record =
+          reuse == null && upstreamUrl != null && (etag != null || lastModified != null);
+      if (record) {
+        digest = JwksCache.digest(jwksContent);
+      }
+
+      if (selectByKid) {
+        String jwk = selectKey(jwksContent, digest, resolveKid(msgCtxt), msgCtxt);
+        if (record) {
+          validated.put(
+              upstreamUrl, new Validated(etag, lastModified, jwksContent, digest, null));
+        }
+        if (destinationVariable != null) {
+          msgCtxt.setVariable(destinationVariable, jwk);
+        } else {
+          writeOutput(
+              source,
+              sourceVariable,
+              useStream,
+              jwk.getBytes(StandardCharsets.UTF_8),
+              jwk,
+              msgCtxt);
+        }
+        return ExecutionResult.SUCCESS;
       }
+      JwksCache.Entry transformedJwks =
+          (reuse != null && reuse.output != null)
+              ? reuse.output
+              : transformWithCache(jwksContent, digest, msgCtxt);
+      if (record) {
+        validated.put(
+            upstreamUrl,
+            new Validated(etag, lastModified, jwksContent, digest, transformedJwks));
+      }
+      writeOutput(
+          source,
+          sourceVariable,
+          useStream,
+          transformedJwks.getBytes(),
+          transformedJwks.getContent(),
+          msgCtxt);
       return ExecutionResult.SUCCESS;
+    } catch (JsonLimits.LimitExceededException exc1) {
+      msgCtxt.setVariable(varName("exception"), exc1.toString());
+      msgCtxt.setVariable(varName("error"), "limit-exceeded");
+      msgCtxt.setVariable(varName("error_detail"), exc1.getMessage());
+      return ExecutionResult.ABORT;
     } catch (IllegalStateException exc1) {
       setExceptionVariables(exc1, msgCtxt);
       return ExecutionResult.ABORT;
@@ -0,0 +1,175 @@
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.json.JavaxJson;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The settings that affect how TransformJwks transforms a JWKS. They are
+ * read once, from the policy properties, when the policy is instantiated.
+ **/
+public class TransformOptions {
+  TransformJwks.Mode mode = TransformJwks.Mode.TREE;
+  int parallelThreshold; // 0 means never decode keys in parallel
+  List<String> stripMembers = Collections.emptyList();
+  boolean skipBadKeys; // leave keys whose x5c does not decode, rather than fail
+  JsonLimits limits; // checked as the content is parsed; null for none
+
+  static final List<String> DEFAULT_STRIP_MEMBERS =
+      Collections.unmodifiableList(Arrays.asList("x5c", "x5t", "x5t#S256"));
+
+  public static TransformOptions fromProperties(Map<String, String> properties) {
+    TransformOptions options = new TransformOptions();
+    options.mode = TransformJwks.Mode.parse(properties.get("transform-mode"));
+    options.parallelThreshold = parseInt(properties, "parallel-threshold", 0);
+    options.stripMembers =
+        parseStripMembers(properties.get("output-profile"), properties.get("strip-members"));
+    options.skipBadKeys = parseBoolean(properties, "skip-bad-keys");
+    options.limits = JsonLimits.parse(properties.get("limits"));
+    if (options.mode == TransformJwks.Mode.SPLICE && !options.stripMembers.isEmpty()) {
+      // splicing only adds to the input; it cannot take members out
+      throw new IllegalStateException("transform-mode=splice does not support stripping members");
+    }
+    return options;
+  }
+
+  /*
+   * The "full" profile, the default, keeps every member of every key. The
+   * "minimal" profile removes the members named in strip-members, or the
+   * certificate members if that is not set.
+   **/
+  static List<String> parseStripMembers(String profile, String members) {
+    boolean minimal = false;
+    if (profile != null && !profile.trim().equals("")) {
+      switch (profile.trim().toLowerCase()) {
+        case "full":
+          break;
+        case "minimal":
+          minimal = true;
+          break;
+        default:
+          throw new IllegalStateException("unknown output-profile: " + profile.trim());
+      }
+    }
+    if (members == null || members.trim().equals("")) {
+      return minimal ? DEFAULT_STRIP_MEMBERS : Collections.<String>emptyList();
+    }
+    if (!minimal) {
+      throw new IllegalStateException("strip-members requires output-profile=minimal");
+    }
+    List<String> list = new ArrayList<String>();
+    for (String member : members.split(",")) {
+      if (!member.trim().equals("")) {
+        list.add(member.trim());
+      }
+    }
+    return Collections.unmodifiableList(list);
+  }
+
+  /*
+   * Removes the configured members from a transformed key, but only if the
+   * key still carries its public key material in some other form, so that
+   * no key is left unusable. The size of what is removed, as it would have
+   * appeared in the compact output, is added to the stats.
+   **/
+  void strip(Map<String, Object> jwk, TransformStats stats) throws IOException {
+    if (stripMembers.isEmpty() || !hasKeyMaterial(jwk)) return;
+    for (String member : stripMembers) {
+      if (!jwk.containsKey(member)) continue;
+      Object value = jwk.remove(member);
+      // "name":value and its comma; the braces of the wrapper are not counted
+      String json = JavaxJson.toJson(Collections.singletonMap(member, value));
+      stats.strippedBytes += json.getBytes(StandardCharsets.UTF_8).length - 2 + 1;
+    }
+  }
+
+  private static boolean hasKeyMaterial(Map<String, Object> jwk) {
+    Object kty = jwk.get("kty");
+    if ("RSA".equals(kty)) return jwk.containsKey("n") && jwk.containsKey("e");
+    if ("EC".equals(kty)) return jwk.containsKey("x") && jwk.containsKey("y");
+    if ("OKP".equals(kty)) return jwk.containsKey("x");
+    return false;
+  }
+
+  /*
+   * Identifies the options that change the output, so that results
+   * produced under different options are cached separately. The tree and
+   * streaming modes write the same bytes; splicing keeps the formatting of
+   * the input, so its results are kept apart.
+   **/
+  String fingerprint() {
+    String fingerprint = stripMembers.isEmpty() ? "" : "strip=" + String.join(",", stripMembers);
+    if (skipBadKeys) {
+      fingerprint = fingerprint.equals("") ? "skip-bad-keys" : fingerprint + ";skip-bad-keys";
+    }
+    if (mode == TransformJwks.Mode.SPLICE) {
+      fingerprint = fingerprint.equals("") ? "mode=splice" : fingerprint + ";mode=splice";
+    }
+    return fingerprint;
+  }
+
+  static boolean parseBoolean(Map<String, String> properties, String name) {
+    String value = properties.get(name);
+    if (value == null || value.trim().equals("")) return false;
+    if (value.trim().equalsIgnoreCase("true")) return true;
+    if (value.trim().equalsIgnoreCase("false")) return false;
+    throw new IllegalStateException("invalid value for " + name + ": " + value.trim());
+  }
+
+  static int parseInt(Map<String, String> properties, String name, int defaultValue) {
+    String value = properties.get(name);
+    if (value == null || value.trim().equals("")) return defaultValue;
+    try {
+      int v = Integer.parseInt(value.trim());
+      if (v >= 0) return v;
+    } catch (NumberFormatException e) {
+      // fall through
+    }
+    throw new IllegalStateException("invalid value for " + name + ": " + value.trim());
+  }
+
+  public TransformOptions withMode(TransformJwks.Mode mode) {
+    this.mode = mode;
+    return this;
+  }
+
+  public TransformOptions withParallelThreshold(int parallelThreshold) {
+    this.parallelThreshold = parallelThreshold;
+    return this;
+  }
+
+  public TransformOptions withSkipBadKeys(boolean skipBadKeys) {
+    this.skipBadKeys = skipBadKeys;
+    return this;
+  }
+
+  public TransformOptions withLimits(JsonLimits limits) {
+    this.limits = limits;
+    return this;
+  }
+
+  public TransformOptions withStripMembers(List<String> stripMembers) {
+    this.stripMembers = Collections.unmodifiableList(new ArrayList<String>(stripMembers));
+    return this;
+  }
+}
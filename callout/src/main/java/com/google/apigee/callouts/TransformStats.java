@@ -0,0 +1,101 @@
+// Copyright © 2023-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+/*
+ * Counters and phase timings collected during a single transform. Not
+ * shared between threads. Times are in nanoseconds.
+ **/
+public class TransformStats {
+  int keyCacheHits;
+  int keyCacheMisses;
+  int pemCacheHits;
+  int pemCacheMisses;
+
+  int keysSeen;
+  int keysTransformed;
+  int keysSkipped;
+
+  long parseNanos;
+  long decodeNanos;
+  long encodeNanos;
+  long serializeNanos;
+
+  long strippedBytes;
+
+  void add(TransformStats other) {
+    keyCacheHits += other.keyCacheHits;
+    keyCacheMisses += other.keyCacheMisses;
+    pemCacheHits += other.pemCacheHits;
+    pemCacheMisses += other.pemCacheMisses;
+    keysSeen += other.keysSeen;
+    keysTransformed += other.keysTransformed;
+    keysSkipped += other.keysSkipped;
+    parseNanos += other.parseNanos;
+    decodeNanos += other.decodeNanos;
+    encodeNanos += other.encodeNanos;
+    serializeNanos += other.serializeNanos;
+    strippedBytes += other.strippedBytes;
+  }
+
+  public int getKeyCacheHits() {
+    return keyCacheHits;
+  }
+
+  public int getKeyCacheMisses() {
+    return keyCacheMisses;
+  }
+
+  public int getPemCacheHits() {
+    return pemCacheHits;
+  }
+
+  public int getPemCacheMisses() {
+    return pemCacheMisses;
+  }
+
+  public int getKeysSeen() {
+    return keysSeen;
+  }
+
+  public int getKeysTransformed() {
+    return keysTransformed;
+  }
+
+  public int getKeysSkipped() {
+    return keysSkipped;
+  }
+
+  public long getParseNanos() {
+    return parseNanos;
+  }
+
+  public long getDecodeNanos() {
+    return decodeNanos;
+  }
+
+  public long getEncodeNanos() {
+    return encodeNanos;
+  }
+
+  public long getSerializeNanos() {
+    return serializeNanos;
+  }
+
+  public long getStrippedBytes() {
+    return strippedBytes;
+  }
+}
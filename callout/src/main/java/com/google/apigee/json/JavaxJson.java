@@ -5,46 +5,219 @@ package com.google.apigee.json;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
+import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import javax.json.Json;
 import javax.json.JsonArray;
+import javax.json.JsonBuilderFactory;
 import javax.json.JsonNumber;
 import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
 import javax.json.JsonString;
 import javax.json.JsonValue;
 import javax.json.JsonValue.ValueType;
-import javax.json.JsonWriter;
+import javax.json.spi.JsonProvider;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
 
 public class JavaxJson {
+  // JsonProvider.provider() does a ServiceLoader lookup on each call, and so
+  // do the static methods on Json. Resolve the provider and factories once.
+  private static final JsonProvider provider = JsonProvider.provider();
+  private static final JsonReaderFactory readerFactory =
+      provider.createReaderFactory(Collections.<String, Object>emptyMap());
+  private static final JsonBuilderFactory builderFactory =
+      provider.createBuilderFactory(Collections.<String, Object>emptyMap());
+  private static final JsonParserFactory parserFactory =
+      provider.createParserFactory(Collections.<String, Object>emptyMap());
+  private static final JsonGeneratorFactory generatorFactory =
+      provider.createGeneratorFactory(Collections.<String, Object>emptyMap());
+  private static final JsonGeneratorFactory prettyGeneratorFactory =
+      provider.createGeneratorFactory(
+          Collections.<String, Object>singletonMap(JsonGenerator.PRETTY_PRINTING, true));
+
+  public static JsonParser createParser(Reader reader) {
+    return parserFactory.createParser(reader);
+  }
+
+  public static JsonParser createParser(InputStream in) {
+    return parserFactory.createParser(in);
+  }
+
+  public static JsonGenerator createGenerator(Writer writer) {
+    return generatorFactory.createGenerator(writer);
+  }
+
+  public static JsonGenerator createGenerator(OutputStream out) {
+    return generatorFactory.createGenerator(out, StandardCharsets.UTF_8);
+  }
+
+  public static JsonObject toJsonObject(Map<String, Object> map) {
+    return builderFactory.createObjectBuilder(map).build();
+  }
+
   @SuppressWarnings("unchecked")
   public static <T> T fromJson(String json, Class<T> beanClass) {
-    JsonValue value = Json.createReader(new StringReader(json)).read();
+    try (JsonReader reader = readerFactory.createReader(new StringReader(json))) {
+      return (T) decode(reader.read(), beanClass);
+    }
+  }
+
+  /*
+   * Reads JSON from a stream, detecting the encoding (UTF-8, UTF-16 or UTF-32).
+   **/
+  @SuppressWarnings("unchecked")
+  public static <T> T fromJson(InputStream in, Class<T> beanClass) {
+    try (JsonReader reader = readerFactory.createReader(in)) {
+      return (T) decode(reader.read(), beanClass);
+    }
+  }
+
+  /*
+   * Reads the next value from the parser, into the same types that
+   * fromJson(..., Map.class) produces, without building a JsonValue first.
+   * Only next() and the accessors for the current event are called, so the
+   * parser may be one that wraps another.
+   **/
+  public static Object readValue(JsonParser parser) {
+    return readValue(parser, parser.next());
+  }
+
+  /*
+   * Reads the members of an object whose START_OBJECT the parser has just
+   * returned, up to and including its END_OBJECT.
+   **/
+  public static Map<String, Object> readObject(JsonParser parser) {
+    Map<String, Object> map = new LinkedHashMap<>();
+    JsonParser.Event event;
+    while ((event = parser.next()) != JsonParser.Event.END_OBJECT) {
+      String name = parser.getString();
+      map.put(name, readValue(parser, parser.next()));
+    }
+    return map;
+  }
+
+  private static Object readValue(JsonParser parser, JsonParser.Event event) {
+    switch (event) {
+      case START_OBJECT:
+        return readObject(parser);
+      case START_ARRAY:
+        List<Object> list = new ArrayList<>();
+        while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+          list.add(readValue(parser, event));
+        }
+        return list;
+      case VALUE_STRING:
+        return parser.getString();
+      case VALUE_NUMBER:
+        return parser.getBigDecimal().doubleValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      default:
+        throw new IllegalStateException("unexpected parser event: " + event);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> T fromJsonValue(JsonValue value, Class<T> beanClass) {
     return (T) decode(value, beanClass);
   }
 
   public static String toJson(Map<String, Object> map) throws IOException {
-    JsonObjectBuilder builder = Json.createObjectBuilder(map);
-    JsonObject jsonObj = builder.build();
-    try (StringWriter stringWriter = new StringWriter()) {
-      JsonWriter jsonWriter = Json.createWriter(stringWriter);
-      jsonWriter.writeObject(jsonObj);
-      jsonWriter.close();
-      return stringWriter.getBuffer().toString();
-    } catch (IOException ioexc) {
-      throw ioexc;
+    return toJson(map, false);
+  }
+
+  public static String toJson(Map<String, Object> map, boolean prettyPrint) throws IOException {
+    StringWriter stringWriter = new StringWriter();
+    try (JsonGenerator generator =
+        ((prettyPrint) ? prettyGeneratorFactory : generatorFactory).createGenerator(stringWriter)) {
+      write(generator, map);
+    }
+    return stringWriter.toString();
+  }
+
+  /*
+   * Writes compact UTF-8 JSON to the stream.
+   **/
+  public static void toJson(Map<String, Object> map, OutputStream out) {
+    try (JsonGenerator generator = generatorFactory.createGenerator(out, StandardCharsets.UTF_8)) {
+      write(generator, map);
+    }
+  }
+
+  /*
+   * Writes the map as a JSON object, in the current context of the
+   * generator. The map, and any maps and lists in it, are walked directly,
+   * rather than first copied into a JsonObject. Values are written as
+   * createObjectBuilder would convert them, so the output is the same.
+   **/
+  public static void write(JsonGenerator generator, Map<String, Object> map) {
+    writeValue(generator, map);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void writeValue(JsonGenerator generator, Object value) {
+    if (value == null) {
+      generator.writeNull();
+    } else if (value instanceof String) {
+      generator.write((String) value);
+    } else if (value instanceof Map) {
+      generator.writeStartObject();
+      for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+        generator.writeKey(entry.getKey());
+        writeValue(generator, entry.getValue());
+      }
+      generator.writeEnd();
+    } else if (value instanceof Collection) {
+      generator.writeStartArray();
+      for (Object item : (Collection<Object>) value) {
+        writeValue(generator, item);
+      }
+      generator.writeEnd();
+    } else if (value instanceof Double) {
+      generator.write(BigDecimal.valueOf((Double) value));
+    } else if (value instanceof Integer || value instanceof Long) {
+      generator.write(((Number) value).longValue());
+    } else if (value instanceof Boolean) {
+      generator.write((Boolean) value);
+    } else if (value instanceof BigDecimal) {
+      generator.write((BigDecimal) value);
+    } else if (value instanceof BigInteger) {
+      generator.write((BigInteger) value);
+    } else if (value instanceof JsonValue) {
+      generator.write((JsonValue) value);
+    } else {
+      throw new IllegalArgumentException("Type " + value.getClass() + " is not supported.");
     }
   }
 
@@ -178,26 +351,84 @@ public class JavaxJson {
         }
       }
       return map;
-    } else
-      try {
-        Object bean = targetClass.newInstance();
-
-        for (PropertyDescriptor property :
-            Introspector.getBeanInfo(targetClass).getPropertyDescriptors()) {
-          if (property.getWriteMethod() != null && object.containsKey(property.getName())) {
-            property
-                .getWriteMethod()
-                .invoke(
-                    bean,
-                    decode(
-                        object.get(property.getName()),
-                        property.getWriteMethod().getGenericParameterTypes()[0]));
-          }
+    }
+    BeanSetters setters;
+    try {
+      setters = beanSetters.get(targetClass);
+    } catch (RuntimeException e) {
+      throw new UnsupportedOperationException("Unsupported object type: " + targetClass, e);
+    }
+    try {
+      Object bean = setters.constructor.invokeExact();
+      for (BeanSetter setter : setters.setters) {
+        JsonValue value = object.get(setter.name);
+        if (value != null) {
+          setter.handle.invokeExact(bean, decode(value, setter.type));
         }
-
-        return bean;
-      } catch (Exception e) {
-        throw new UnsupportedOperationException("Unsupported object type: " + targetClass, e);
       }
+      return bean;
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new UnsupportedOperationException("Unsupported object type: " + targetClass, t);
+    }
+  }
+
+  /* A writable bean property: its name, its declared type, and its setter. */
+  private static final class BeanSetter {
+    final String name;
+    final Type type;
+    final MethodHandle handle; // (Object, Object) -> void
+
+    BeanSetter(String name, Type type, MethodHandle handle) {
+      this.name = name;
+      this.type = type;
+      this.handle = handle;
+    }
   }
+
+  private static final class BeanSetters {
+    final MethodHandle constructor; // () -> Object
+    final BeanSetter[] setters;
+
+    BeanSetters(MethodHandle constructor, BeanSetter[] setters) {
+      this.constructor = constructor;
+      this.setters = setters;
+    }
+  }
+
+  /*
+   * Introspecting a bean class is far slower than decoding into it, so it
+   * is done once per class, and the setters kept as method handles.
+   **/
+  private static final ClassValue<BeanSetters> beanSetters =
+      new ClassValue<BeanSetters>() {
+        @Override
+        protected BeanSetters computeValue(Class<?> type) {
+          try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle constructor =
+                lookup
+                    .findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            List<BeanSetter> setters = new ArrayList<>();
+            for (PropertyDescriptor property :
+                Introspector.getBeanInfo(type).getPropertyDescriptors()) {
+              Method writeMethod = property.getWriteMethod();
+              if (writeMethod != null) {
+                MethodHandle handle =
+                    lookup
+                        .unreflect(writeMethod)
+                        .asType(MethodType.methodType(void.class, Object.class, Object.class));
+                setters.add(
+                    new BeanSetter(
+                        property.getName(), writeMethod.getGenericParameterTypes()[0], handle));
+              }
+            }
+            return new BeanSetters(constructor, setters.toArray(new BeanSetter[0]));
+          } catch (Exception e) {
+            throw new IllegalArgumentException("cannot decode into " + type.getName(), e);
+          }
+        }
+      };
 }
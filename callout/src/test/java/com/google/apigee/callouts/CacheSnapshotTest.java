@@ -0,0 +1,251 @@
+// Copyright © 2024 Google, LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// All rights reserved.
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.util.JwksGenerator;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class CacheSnapshotTest extends CalloutTestBase {
+
+  private Path dir;
+  private String jwks;
+
+  @BeforeClass
+  public void createDirectory() throws Exception {
+    dir = Files.createTempDirectory("jwks-snapshot");
+    jwks = new JwksGenerator(25L).withKeyCount(2).withKeySizes(1024).generate();
+  }
+
+  @BeforeMethod
+  public void forgetRestored() {
+    CacheSnapshot.clearRestored();
+  }
+
+  @AfterClass
+  public void deleteDirectory() throws Exception {
+    for (File f : dir.toFile().listFiles()) {
+      f.delete();
+    }
+    Files.delete(dir);
+  }
+
+  private Map<String, String> cacheProperties(String cache) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("cache", cache);
+    return props;
+  }
+
+  private ExecutionResult transform(TransformJwks callout) {
+    return transform(callout, jwks);
+  }
+
+  private ExecutionResult transform(TransformJwks callout, String jwks) {
+    msgCtxt.setVariable("message.content", jwks);
+    return callout.execute(msgCtxt, exeCtxt);
+  }
+
+  private static JwksCache cacheFor(Map<String, String> props) {
+    return JwksCache.forSettings(JwksCache.Settings.parse(props.get("cache")));
+  }
+
+  @Test
+  public void restoresTransformedJwksAndCertificates() throws Exception {
+    Map<String, String> props = cacheProperties("max-entries=4, ttl=603");
+    JwksCache cache = cacheFor(props);
+    cache.clear();
+    TransformJwks callout = new TransformJwks(props);
+    Assert.assertEquals(transform(callout), ExecutionResult.SUCCESS, "result not as expected");
+    String output = (String) msgCtxt.getVariable("message.content");
+
+    Path file = dir.resolve("restores.snap");
+    CacheSnapshot.write(file);
+    for (String name : dir.toFile().list()) {
+      Assert.assertFalse(name.endsWith(".tmp"), "temporary file left behind: " + name);
+    }
+
+    cache.clear();
+    CertificateKeyCache.getInstance().clear();
+    Assert.assertTrue(CacheSnapshot.read(file) >= 3, "restored");
+    Assert.assertTrue(CertificateKeyCache.getInstance().size() >= 2);
+    // the JWKS entries wait for a policy to configure its cache
+    Assert.assertEquals(cache.size(), 0);
+    callout = new TransformJwks(props);
+    Assert.assertNotNull(cache.get(JwksCache.digest(jwks)));
+
+    Assert.assertEquals(transform(callout), ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_cache_hit"), "true");
+    Assert.assertEquals(msgCtxt.getVariable("message.content"), output);
+  }
+
+  @Test
+  public void expiredEntriesAreDiscarded() throws Exception {
+    Map<String, String> props = cacheProperties("max-entries=4, ttl=1");
+    JwksCache cache = cacheFor(props);
+    cache.clear();
+    Assert.assertEquals(
+        transform(new TransformJwks(props)), ExecutionResult.SUCCESS, "result not as expected");
+    Path file = dir.resolve("expired.snap");
+    CacheSnapshot.write(file);
+
+    Thread.sleep(1100);
+    cache.clear();
+    CertificateKeyCache.getInstance().clear();
+    CacheSnapshot.read(file);
+    Assert.assertEquals(CacheSnapshot.restoreInto(cache), 0);
+    Assert.assertEquals(cache.size(), 0);
+    // the decoded certificates do not expire
+    Assert.assertTrue(CertificateKeyCache.getInstance().size() >= 2);
+  }
+
+  @Test
+  public void corruptRecordsAreDiscarded() throws Exception {
+    Map<String, String> props = cacheProperties("max-entries=4, ttl=604");
+    JwksCache cache = cacheFor(props);
+    cache.clear();
+    String content = new JwksGenerator(26L).withKeyCount(2).withKeySizes(1024).generate();
+    Assert.assertEquals(
+        transform(new TransformJwks(props), content),
+        ExecutionResult.SUCCESS,
+        "result not as expected");
+    Path file = dir.resolve("corrupt.snap");
+    CacheSnapshot.write(file);
+
+    // damage the record for this JWKS, found by its key, and leave the rest alone
+    byte[] bytes = Files.readAllBytes(file);
+    String text = new String(bytes, StandardCharsets.ISO_8859_1);
+    int at = text.indexOf(JwksCache.digest(content));
+    Assert.assertTrue(at > 0);
+    bytes[at] ^= 1;
+    Files.write(file, bytes);
+
+    cache.clear();
+    CertificateKeyCache.getInstance().clear();
+    CacheSnapshot.read(file);
+    CacheSnapshot.restoreInto(cache);
+    Assert.assertNull(cache.get(JwksCache.digest(content)));
+    Assert.assertTrue(CertificateKeyCache.getInstance().size() >= 2);
+
+    // a truncated file, or one that is not a snapshot, restores what it can
+    Path truncated = dir.resolve("truncated.snap");
+    Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 10));
+    CacheSnapshot.read(truncated);
+    Path other = dir.resolve("other.snap");
+    Files.write(other, "{}".getBytes(StandardCharsets.UTF_8));
+    Assert.assertEquals(CacheSnapshot.read(other), 0);
+    Assert.assertEquals(CacheSnapshot.read(dir.resolve("missing.snap")), 0);
+  }
+
+  @Test
+  public void restoredEntriesTakeThePolicySettings() throws Exception {
+    Map<String, String> props = cacheProperties("max-entries=4, ttl=609");
+    JwksCache cache = cacheFor(props);
+    cache.clear();
+    Assert.assertEquals(
+        transform(new TransformJwks(props)), ExecutionResult.SUCCESS, "result not as expected");
+    Path file = dir.resolve("settings.snap");
+    CacheSnapshot.write(file);
+    cache.clear();
+    CacheSnapshot.read(file);
+
+    // a cache configured otherwise takes the entry, under its own ttl
+    Map<String, String> longer = cacheProperties("max-entries=2, ttl=610");
+    Map<String, String> shorter = cacheProperties("max-entries=2, ttl=1");
+    cacheFor(longer).clear();
+    cacheFor(shorter).clear();
+    Thread.sleep(1100);
+    Assert.assertEquals(
+        transform(new TransformJwks(longer)), ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_cache_hit"), "true");
+    Assert.assertEquals(CacheSnapshot.restoreInto(cacheFor(shorter)), 0);
+  }
+
+  private static void waitFor(Path file) throws Exception {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!Files.exists(file) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    Assert.assertTrue(Files.exists(file), "snapshot written");
+  }
+
+  @Test
+  public void snapshotFileProperty() throws Exception {
+    Path file = dir.resolve("property.snap");
+    Map<String, String> props = cacheProperties("max-entries=4, ttl=605");
+    JwksCache cache = cacheFor(props);
+    cache.clear();
+    System.setProperty(TransformJwks.SNAPSHOT_FILE_PROPERTY, file.toString());
+    try {
+      Assert.assertEquals(
+          transform(new TransformJwks(props)), ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertEquals(msgCtxt.getVariable("jwks_cache_hit"), "false");
+
+      // the miss is saved shortly, in the background
+      waitFor(file);
+
+      // the snapshot is restored when a policy is first configured
+      cache.clear();
+      Path copy = dir.resolve("property-copy.snap");
+      Files.copy(file, copy);
+      System.setProperty(TransformJwks.SNAPSHOT_FILE_PROPERTY, copy.toString());
+      Assert.assertEquals(
+          transform(new TransformJwks(props)), ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertEquals(msgCtxt.getVariable("jwks_cache_hit"), "true");
+
+      // certificates decoded without the JWKS cache are saved too
+      Path uncached = dir.resolve("uncached.snap");
+      System.setProperty(TransformJwks.SNAPSHOT_FILE_PROPERTY, uncached.toString());
+      CertificateKeyCache.getInstance().clear();
+      Map<String, String> kidProps = cacheProperties("false");
+      kidProps.put("kid", "k0");
+      kidProps.put("destination", "selected_jwk");
+      Assert.assertEquals(
+          transform(new TransformJwks(kidProps)),
+          ExecutionResult.SUCCESS,
+          "result not as expected");
+      waitFor(uncached);
+      CertificateKeyCache.getInstance().clear();
+      Assert.assertTrue(CacheSnapshot.read(uncached) >= 1, "restored");
+    } finally {
+      System.clearProperty(TransformJwks.SNAPSHOT_FILE_PROPERTY);
+    }
+  }
+
+  @Test
+  public void snapshotFileIsNotAPolicyProperty() throws Exception {
+    Map<String, String> props = cacheProperties("max-entries=4, ttl=606");
+    props.put("snapshot-file", dir.resolve("policy.snap").toString());
+    Assert.assertEquals(
+        transform(new TransformJwks(props)), ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("jwks_error"),
+        "snapshot-file is not a policy property; set the system property "
+            + TransformJwks.SNAPSHOT_FILE_PROPERTY);
+    Assert.assertFalse(Files.exists(dir.resolve("policy.snap")));
+  }
+}
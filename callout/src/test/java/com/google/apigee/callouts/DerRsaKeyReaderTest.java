@@ -0,0 +1,146 @@
+// Copyright © 2024 Google, LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// All rights reserved.
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.util.CertificateGenerator;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class DerRsaKeyReaderTest extends CalloutTestBase {
+
+  private static List<X509Certificate> rsaCorpus() throws Exception {
+    CertificateGenerator generator = new CertificateGenerator(20240621L);
+    List<X509Certificate> corpus = new ArrayList<X509Certificate>();
+    BigInteger[] exponents = {BigInteger.valueOf(3), BigInteger.valueOf(65537)};
+    int[] sizes = {1024, 2048, 3072};
+    for (int size : sizes) {
+      for (BigInteger exponent : exponents) {
+        KeyPair keys = generator.rsaKeyPair(size, exponent);
+        corpus.add(generator.selfSigned(keys, "CN=v3-" + size + "-" + exponent));
+        corpus.add(generator.selfSignedV1(keys, "CN=v1-" + size + "-" + exponent));
+      }
+    }
+    // a long subject name forces multi-byte lengths in the skipped fields
+    char[] filler = new char[600];
+    Arrays.fill(filler, 'x');
+    KeyPair keys = generator.rsaKeyPair(2048);
+    corpus.add(generator.selfSigned(keys, "CN=" + new String(filler) + ", O=Example"));
+    // an RSA leaf issued by an EC root
+    KeyPair root = generator.ecKeyPair("secp256r1");
+    corpus.add(generator.certificate(keys, "CN=leaf", root, "CN=ec-root"));
+    return corpus;
+  }
+
+  @Test
+  public void matchesFullParser() throws Exception {
+    for (X509Certificate certificate : rsaCorpus()) {
+      String x5c = CertificateGenerator.toX5c(certificate);
+      RSAPublicKey publicKey = (RSAPublicKey) TransformJwks.x5cToCert(x5c).getPublicKey();
+      CertificateKeyCache.RsaComponents components =
+          DerRsaKeyReader.read(certificate.getEncoded());
+      Assert.assertNotNull(components, certificate.getSubjectX500Principal().getName());
+      Assert.assertEquals(components.getModulus(), TransformJwks.encode(publicKey.getModulus()));
+      Assert.assertEquals(
+          components.getExponent(), TransformJwks.encode(publicKey.getPublicExponent()));
+    }
+  }
+
+  @Test
+  public void declinesNonRsaKeys() throws Exception {
+    CertificateGenerator generator = new CertificateGenerator(7L);
+    KeyPair keys = generator.ecKeyPair("secp256r1");
+    X509Certificate certificate = generator.selfSigned(keys, "CN=ec");
+    Assert.assertNull(DerRsaKeyReader.read(certificate.getEncoded()));
+  }
+
+  @Test
+  public void declinesMalformedInput() throws Exception {
+    CertificateGenerator generator = new CertificateGenerator(11L);
+    byte[] der = generator.selfSigned(generator.rsaKeyPair(1024), "CN=t").getEncoded();
+    for (int length = 0; length < der.length; length += 37) {
+      Assert.assertNull(DerRsaKeyReader.read(Arrays.copyOf(der, length)), "truncated " + length);
+    }
+    byte[] extended = Arrays.copyOf(der, der.length + 1);
+    Assert.assertNull(DerRsaKeyReader.read(extended), "trailing data");
+    byte[] retagged = der.clone();
+    retagged[0] = 0x31;
+    Assert.assertNull(DerRsaKeyReader.read(retagged), "wrong outer tag");
+  }
+
+  private static byte[] sequence(ASN1Encodable... elements) throws Exception {
+    return new DERSequence(elements).getEncoded();
+  }
+
+  @Test
+  public void declinesWhatTheFullParserRejects() throws Exception {
+    CertificateGenerator generator = new CertificateGenerator(12L);
+    for (X509Certificate certificate :
+        new X509Certificate[] {
+          generator.selfSigned(generator.rsaKeyPair(1024), "CN=v3"),
+          generator.selfSignedV1(generator.rsaKeyPair(1024), "CN=v1")
+        }) {
+      ASN1Sequence outer = ASN1Sequence.getInstance(certificate.getEncoded());
+      ASN1Encodable tbs = outer.getObjectAt(0);
+      ASN1Encodable algorithm = outer.getObjectAt(1);
+      ASN1Encodable signature = outer.getObjectAt(2);
+      ASN1Encodable[] tbsFields = ASN1Sequence.getInstance(tbs).toArray();
+      ASN1Encodable[] tbsExtended = Arrays.copyOf(tbsFields, tbsFields.length + 1);
+      tbsExtended[tbsFields.length] = new ASN1Integer(1);
+      byte[] signatureBytes = DERBitString.getInstance(signature).getBytes();
+
+      Object[][] cases = {
+        {"no signature", sequence(tbs, algorithm)},
+        {"no signature algorithm", sequence(tbs, signature)},
+        {"only the tbs", sequence(tbs)},
+        {"an element after the signature", sequence(tbs, algorithm, signature, DERNull.INSTANCE)},
+        {"a signature that is not a bit string",
+          sequence(tbs, algorithm, new DEROctetString(signatureBytes))},
+        {"a signature algorithm that is not a sequence",
+          sequence(tbs, DERNull.INSTANCE, signature)},
+        {"a field after the extensions",
+          sequence(new DERSequence(tbsExtended), algorithm, signature)}
+      };
+      for (Object[] c : cases) {
+        String label = certificate.getSubjectX500Principal().getName() + ": " + c[0];
+        byte[] der = (byte[]) c[1];
+        Assert.assertNull(DerRsaKeyReader.read(der), label);
+        try {
+          TransformJwks.x5cToCert(Base64.getEncoder().encodeToString(der));
+          Assert.fail("the full parser accepts " + label);
+        } catch (Exception e) {
+          // rejected, as it should be
+        }
+      }
+      // the same pieces, put back as they were, are accepted
+      Assert.assertNotNull(DerRsaKeyReader.read(sequence(tbs, algorithm, signature)));
+    }
+  }
+}
@@ -16,8 +16,12 @@
 package com.google.apigee.callouts;
 
 import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.util.CertificateGenerator;
+import java.security.KeyPair;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -108,4 +112,201 @@ public class JwkToPemTest extends CalloutTestBase {
     Assert.assertNotNull(pemContent);
     Assert.assertEquals(pemContent, expectedPublicKey);
   }
+
+  @Test
+  public void secondCallIsServedFromCache() throws Exception {
+    JwkToPem.clearCache();
+    msgCtxt.setVariable("jwk1", jwk1);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "jwk1");
+    JwkToPem callout = new JwkToPem(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_pemcache_hit"), "false");
+    Object firstPem = msgCtxt.getVariable("jwks_pem");
+    // no debug, so n and e are not exposed
+    Assert.assertNull(msgCtxt.getVariable("jwks_n"));
+
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_pemcache_hit"), "true");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_pem"), firstPem);
+  }
+
+  @Test
+  public void debugExposesModulusAndExponent() throws Exception {
+    msgCtxt.setVariable("jwk1", jwk1);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("debug", "true");
+    props.put("source", "jwk1");
+    JwkToPem callout = new JwkToPem(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_e"), "AQAB");
+    Assert.assertNotNull(msgCtxt.getVariable("jwks_n"));
+  }
+
+  @Test
+  public void missingExponent() throws Exception {
+    msgCtxt.setVariable("jwk1", "{\"kty\":\"RSA\",\"n\":\"goToHtkVP3px\"}");
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "jwk1");
+    JwkToPem callout = new JwkToPem(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_error"), "jwk lacks n or e");
+  }
+
+  @Test
+  public void encoderMatchesLineWrapping() throws Exception {
+    Random random = new Random(7517);
+    // cover lengths that end exactly on, just before, and just after a line boundary
+    for (int length = 0; length < 200; length++) {
+      byte[] der = new byte[length];
+      random.nextBytes(der);
+      String b64 = Base64.getEncoder().encodeToString(der);
+      String expected =
+          "-----BEGIN PUBLIC KEY-----\n"
+              + b64.replaceAll(".{1,64}", "$0\n")
+              + "-----END PUBLIC KEY-----\n";
+      Assert.assertEquals(JwkToPem.encodePem(der), expected, "length " + length);
+    }
+  }
+
+  @Test
+  public void batchConvertsEveryRsaKey() throws Exception {
+    CertificateGenerator generator = new CertificateGenerator(11L);
+    KeyPair keys = generator.rsaKeyPair(1024);
+    String x5c = CertificateGenerator.toX5c(generator.selfSigned(keys, "CN=batch"));
+    String jwks =
+        "{\"keys\":["
+            + jwk1
+            + ",{\"kty\":\"RSA\",\"kid\":\"from-x5c\",\"x5c\":[\""
+            + x5c
+            + "\"]}"
+            + ",{\"kty\":\"EC\",\"kid\":\"ec1\",\"crv\":\"P-256\",\"x\":\"AQ\",\"y\":\"AQ\"}"
+            + ",{\"kty\":\"RSA\",\"e\":\"AQAB\",\"n\":\"goToHtkVP3px\"}"
+            + "]}";
+    msgCtxt.setVariable("jwks1", jwks);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "jwks1");
+    props.put("input", "jwks");
+    props.put("destination", "pems");
+    JwkToPem callout = new JwkToPem(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertNull(msgCtxt.getVariable("jwks_error"));
+    // the EC key and the key without a kid are skipped
+    Assert.assertEquals(msgCtxt.getVariable("pems_kids"), "b3eeac92,from-x5c");
+    Assert.assertEquals(msgCtxt.getVariable("pems_b3eeac92"), JwkToPem.transform(jwk1));
+    Assert.assertEquals(
+        msgCtxt.getVariable("pems_from-x5c"), JwkToPem.encodePem(keys.getPublic().getEncoded()));
+    Assert.assertNull(msgCtxt.getVariable("pems_ec1"));
+    // metrics are off by default
+    Assert.assertNull(msgCtxt.getVariable("jwks_keys_seen"));
+
+    props.put("metrics", "true");
+    JwkToPem.clearCache();
+    actualResult = new JwkToPem(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keys_seen"), "4");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keys_transformed"), "2");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keys_skipped"), "2");
+    Assert.assertTrue(Long.parseLong((String) msgCtxt.getVariable("jwks_encode_ns")) > 0);
+  }
+
+  @Test
+  public void batchRejectsUnusableKids() throws Exception {
+    String second = jwk1.replace("\"b3eeac92\"", "\"kids\"");
+    String dotted = jwk1.replace("\"b3eeac92\"", "\"a.b\"");
+    String empty = jwk1.replace("\"b3eeac92\"", "\"\"");
+    String jwks =
+        "{\"keys\":[" + String.join(",", jwk1, jwk1, second, dotted, empty) + "]}";
+    msgCtxt.setVariable("jwks1", jwks);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "jwks1");
+    props.put("input", "jwks");
+    props.put("destination", "pems");
+    props.put("metrics", "true");
+    ExecutionResult actualResult = new JwkToPem(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    // the list of kids is not overwritten by a key whose kid is "kids"
+    Assert.assertEquals(msgCtxt.getVariable("pems_kids"), "b3eeac92");
+    Assert.assertEquals(msgCtxt.getVariable("pems_duplicate_kids"), "b3eeac92");
+    Assert.assertEquals(msgCtxt.getVariable("pems_invalid_kids"), "kids,a.b,");
+    Assert.assertNull(msgCtxt.getVariable("pems_a.b"));
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keys_transformed"), "1");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keys_skipped"), "4");
+  }
+
+  @Test
+  public void batchReportsUndecodableKeys() throws Exception {
+    CertificateGenerator generator = new CertificateGenerator(13L);
+    String x5c =
+        CertificateGenerator.toX5c(generator.selfSigned(generator.rsaKeyPair(1024), "CN=good"));
+    String jwks =
+        "{\"keys\":["
+            + "{\"kty\":\"RSA\",\"kid\":\"not-a-string\",\"x5c\":[42]}"
+            + ",{\"kty\":\"RSA\",\"kid\":\"not-a-certificate\",\"x5c\":[\"AAAA\"]}"
+            + ",{\"kty\":\"RSA\",\"kid\":\"not-base64\",\"e\":\"AQAB\",\"n\":\"#\"}"
+            + ",{\"kty\":\"RSA\",\"kid\":\"good\",\"x5c\":[\""
+            + x5c
+            + "\"]}"
+            + ","
+            + jwk1
+            + "]}";
+    msgCtxt.setVariable("jwks1", jwks);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "jwks1");
+    props.put("input", "jwks");
+    props.put("destination", "pems");
+    props.put("metrics", "true");
+    ExecutionResult actualResult = new JwkToPem(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertNull(msgCtxt.getVariable("jwks_error"));
+    Assert.assertEquals(msgCtxt.getVariable("pems_kids"), "good,b3eeac92");
+    Assert.assertEquals(
+        msgCtxt.getVariable("pems_invalid_kids"), "not-a-string,not-a-certificate,not-base64");
+    Assert.assertNull(msgCtxt.getVariable("pems_not-a-certificate"));
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keys_transformed"), "2");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keys_skipped"), "3");
+  }
+
+  @Test
+  public void batchRequiresKeys() throws Exception {
+    msgCtxt.setVariable("jwks1", jwk1);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "jwks1");
+    props.put("input", "jwks");
+    JwkToPem callout = new JwkToPem(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_error"), "jwks content has no keys");
+  }
+
+  @Test
+  public void unknownInput() throws Exception {
+    msgCtxt.setVariable("jwk1", jwk1);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "jwk1");
+    props.put("input", "jwt");
+    JwkToPem callout = new JwkToPem(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_error"), "unknown input: jwt");
+  }
 }
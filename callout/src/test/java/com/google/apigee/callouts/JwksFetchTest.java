@@ -0,0 +1,304 @@
+// Copyright © 2024 Google, LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// All rights reserved.
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.json.JavaxJson;
+import com.google.apigee.util.JwksGenerator;
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class JwksFetchTest extends CalloutTestBase {
+
+  private HttpServer server;
+  private byte[] jwks;
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger notModified = new AtomicInteger();
+  private volatile int status = 200;
+  private volatile String cacheControl;
+
+  @BeforeClass
+  public void startServer() throws Exception {
+    jwks = new JwksGenerator(20L).withKeyCount(2).withKeySizes(1024).generateBytes();
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          requests.incrementAndGet();
+          int responseStatus = status;
+          if (status == 200
+              && "\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            notModified.incrementAndGet();
+            responseStatus = 304;
+          }
+          byte[] body = (responseStatus == 200) ? jwks : new byte[0];
+          exchange.getResponseHeaders().set("Content-Type", "application/json");
+          exchange.getResponseHeaders().set("ETag", "\"v1\"");
+          if (cacheControl != null) {
+            exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+          }
+          exchange.sendResponseHeaders(responseStatus, (body.length > 0) ? body.length : -1);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        });
+    // no Content-Length, so that the size is known only by reading the body
+    server.createContext(
+        "/chunked/",
+        exchange -> {
+          requests.incrementAndGet();
+          exchange.getResponseHeaders().set("Content-Type", "application/json");
+          exchange.sendResponseHeaders(200, 0);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(jwks);
+          }
+        });
+    server.start();
+  }
+
+  @AfterClass
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  private String uri(String path) {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+  }
+
+  private Map<String, String> fetchProperties(String path, String fetch) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("jwks-uri", uri(path));
+    if (fetch != null) {
+      props.put("fetch", fetch);
+    }
+    return props;
+  }
+
+  @Test
+  public void fetchedCopyIsReused() throws Exception {
+    status = 200;
+    requests.set(0);
+    TransformJwks callout = new TransformJwks(fetchProperties("/reused", null));
+
+    for (int i = 0; i < 3; i++) {
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    }
+    Assert.assertEquals(requests.get(), 1);
+    Assert.assertEquals(msgCtxt.getVariable("jwks_stale"), "false");
+    Map<String, Object> jwksjson =
+        JavaxJson.fromJson((String) msgCtxt.getVariable("jwks_output"), Map.class);
+    Map<String, Object> jwk0 = (Map<String, Object>) ((List<Object>) jwksjson.get("keys")).get(0);
+    Assert.assertEquals(jwk0.get("e"), "AQAB");
+  }
+
+  @Test
+  public void fetchWithKid() throws Exception {
+    status = 200;
+    Map<String, String> props = fetchProperties("/kid", null);
+    props.put("kid", "k1");
+    props.put("destination", "selected_jwk");
+
+    ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Map<String, Object> jwk =
+        JavaxJson.fromJson((String) msgCtxt.getVariable("selected_jwk"), Map.class);
+    Assert.assertEquals(jwk.get("kid"), "k1");
+    Assert.assertNotNull(jwk.get("n"));
+  }
+
+  @Test
+  public void refreshesInBackgroundAndServesStale() throws Exception {
+    status = 200;
+    requests.set(0);
+    TransformJwks callout =
+        new TransformJwks(fetchProperties("/refresh", "ttl=1, max-stale=60"));
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(requests.get(), 1);
+
+    // the copy is renewed before it expires, without any request asking for it
+    long deadline = System.currentTimeMillis() + 5000;
+    while (requests.get() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    Assert.assertTrue(requests.get() >= 2, "background refresh");
+
+    // with the upstream down, the last good copy is still served once it expires
+    status = 503;
+    Thread.sleep(1500);
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_stale"), "true");
+    Assert.assertTrue(((String) msgCtxt.getVariable("jwks_fetch_error")).contains("503"));
+    Assert.assertNotNull(msgCtxt.getVariable("jwks_output"));
+  }
+
+  @Test
+  public void refreshWarmsTheCache() throws Exception {
+    status = 200;
+    requests.set(0);
+    Map<String, String> props = fetchProperties("/warm", "ttl=1, max-stale=60");
+    props.put("cache", "max-entries=4, ttl=607");
+    JwksCache cache = JwksCache.forSettings(JwksCache.Settings.parse(props.get("cache")));
+    cache.clear();
+    TransformJwks callout = new TransformJwks(props);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_cache_hit"), "false");
+
+    // the background refresh transforms the copy again, without any request
+    cache.clear();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (cache.size() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    Assert.assertTrue(requests.get() >= 2, "background refresh");
+    Assert.assertEquals(cache.size(), 1);
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_cache_hit"), "true");
+  }
+
+  @Test
+  public void fetchOverMaxBytesIsRefused() throws Exception {
+    status = 200;
+    String maxBytes = "max-bytes=" + (jwks.length - 1);
+    for (String path : new String[] {"/oversized", "/chunked/oversized"}) {
+      Map<String, String> props = fetchProperties(path, null);
+      props.put("limits", maxBytes);
+      ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, path);
+      Assert.assertEquals(msgCtxt.getVariable("jwks_error"), "limit-exceeded", path);
+      Assert.assertTrue(
+          ((String) msgCtxt.getVariable("jwks_error_detail")).endsWith(maxBytes), path);
+    }
+
+    // the same URI under a limit it fits is fetched on its own
+    Map<String, String> props = fetchProperties("/chunked/oversized", null);
+    props.put("limits", "max-bytes=" + jwks.length);
+    ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+  }
+
+  @Test
+  public void fetchersAreBounded() throws Exception {
+    JwksFetcher.Settings settings = JwksFetcher.Settings.parse("ttl=60");
+    for (int i = 0; i < JwksFetcher.MAX_FETCHERS + 8; i++) {
+      JwksFetcher.forUri(uri("/bounded/" + i), settings, null);
+    }
+    Assert.assertTrue(JwksFetcher.count() <= JwksFetcher.MAX_FETCHERS);
+  }
+
+  @Test
+  public void upstreamMaxAgeShortensTtl() throws Exception {
+    status = 200;
+    cacheControl = "max-age=1";
+    notModified.set(0);
+    try {
+      TransformJwks callout = new TransformJwks(fetchProperties("/max-age", "ttl=300"));
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertEquals(msgCtxt.getVariable("jwks_max_age"), "1");
+      String output = (String) msgCtxt.getVariable("jwks_output");
+
+      // the refresh is due within the second, and is answered with a 304
+      long deadline = System.currentTimeMillis() + 5000;
+      while (notModified.get() < 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      Assert.assertTrue(notModified.get() >= 1, "conditional refresh");
+      actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertEquals(msgCtxt.getVariable("jwks_stale"), "false");
+      Assert.assertEquals(msgCtxt.getVariable("jwks_output"), output);
+    } finally {
+      cacheControl = null;
+    }
+  }
+
+  @Test
+  public void failsWithoutAnyCopy() throws Exception {
+    status = 500;
+    String path = "/down";
+    ExecutionResult actualResult =
+        new TransformJwks(fetchProperties(path, null)).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("jwks_error"),
+        "jwks fetch failed: unexpected status 500 from " + uri(path));
+  }
+
+  @Test
+  public void failedFetchIsShared() throws Exception {
+    status = 500;
+    requests.set(0);
+    String path = "/down-shared";
+    try {
+      // requests that arrive just after a failed fetch get its error, without a fetch of their own
+      for (int i = 0; i < 3; i++) {
+        ExecutionResult actualResult =
+            new TransformJwks(fetchProperties(path, null)).execute(msgCtxt, exeCtxt);
+        Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+        Assert.assertEquals(
+            msgCtxt.getVariable("jwks_error"),
+            "jwks fetch failed: unexpected status 500 from " + uri(path));
+      }
+      Assert.assertEquals(requests.get(), 1);
+
+      // after the backoff, the next request tries again
+      status = 200;
+      Thread.sleep(JwksFetcher.FAILURE_BACKOFF_MILLIS + 100);
+      ExecutionResult actualResult =
+          new TransformJwks(fetchProperties(path, null)).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertEquals(requests.get(), 2);
+    } finally {
+      status = 200;
+    }
+  }
+
+  @Test
+  public void onlyHttpIsFetched() throws Exception {
+    for (String uri : new String[] {"file:///etc/passwd", "jar:file:/x.jar!/y", "not a uri"}) {
+      Map<String, String> props = new HashMap<String, String>();
+      props.put("jwks-uri", uri);
+      ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, uri);
+      Assert.assertEquals(
+          msgCtxt.getVariable("jwks_error"), "jwks-uri is not an http or https URL: " + uri);
+    }
+  }
+
+  @Test
+  public void invalidFetchSettings() throws Exception {
+    ExecutionResult actualResult =
+        new TransformJwks(fetchProperties("/invalid", "ttl=soon")).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("jwks_error"), "invalid value for fetch setting ttl: soon");
+  }
+}
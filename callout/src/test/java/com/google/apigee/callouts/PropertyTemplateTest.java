@@ -0,0 +1,93 @@
+// Copyright © 2024 Google, LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// All rights reserved.
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionResult;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class PropertyTemplateTest extends CalloutTestBase {
+
+  // the regex-based resolution that PropertyTemplate replaced
+  private static final Pattern variableReferencePattern =
+      Pattern.compile("(.*?)\\{([^\\{\\} :][^\\{\\} ]*?)\\}(.*?)");
+
+  private String resolveWithRegex(String spec) {
+    Matcher matcher = variableReferencePattern.matcher(spec);
+    StringBuffer sb = new StringBuffer();
+    while (matcher.find()) {
+      matcher.appendReplacement(sb, "");
+      sb.append(matcher.group(1));
+      String[] parts = matcher.group(2).split(":", 2);
+      Object v = msgCtxt.getVariable(parts[0]);
+      if (v != null) {
+        sb.append((String) v);
+      } else if (parts.length > 1) {
+        sb.append(parts[1]);
+      }
+      sb.append(matcher.group(3));
+    }
+    matcher.appendTail(sb);
+    return sb.toString();
+  }
+
+  @Test
+  public void matchesRegexResolution() throws Exception {
+    msgCtxt.setVariable("a", "alpha");
+    msgCtxt.setVariable("b.c", "beta");
+    String[] specs = {
+      "message.content",
+      "{a}",
+      "pre-{a}-post",
+      "{a}{b.c}",
+      "{missing}",
+      "{missing:fallback}",
+      "{a:fallback}",
+      "{missing:with:colons}",
+      "{:a}",
+      "{a b}",
+      "{{a}",
+      "{a{b.c}}",
+      "{}",
+      "}{a}{",
+      "x{",
+      "{a}:{b.c}:{missing:}"
+    };
+    for (String spec : specs) {
+      Assert.assertEquals(
+          PropertyTemplate.compile(spec).resolve(msgCtxt), resolveWithRegex(spec), spec);
+    }
+  }
+
+  @Test
+  public void sourceFromTemplate() throws Exception {
+    msgCtxt.setVariable("which", "jwk1");
+    msgCtxt.setVariable("jwk1", JwkToPemTest.jwk1);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", " {which} ");
+    props.put("destination", "pem_{which}");
+
+    JwkToPem callout = new JwkToPem(props);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertNotNull(msgCtxt.getVariable("pem_jwk1"));
+  }
+}
@@ -17,11 +17,25 @@ package com.google.apigee.callouts;
 
 import com.apigee.flow.execution.ExecutionResult;
 import com.google.apigee.json.JavaxJson;
-import com.google.apigee.util.HttpFetch;
+import com.google.apigee.util.CertificateGenerator;
+import com.google.apigee.util.JwksGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -81,20 +95,16 @@ public class TransformJwksTest extends CalloutTestBase {
     Assert.assertNull(stacktrace, method + "stacktrace");
   }
 
-  private String fetch(String url) {
-    try {
-      return HttpFetch.fetch(url);
-    } catch (Exception exc1) {
-      exc1.printStackTrace();
-      Assert.fail();
-    }
-    return null;
-  }
-
   @Test
   public void noX5c_noop() throws Exception {
-    String method = "noX5c_noop() ";
-    msgCtxt.setVariable("message.content", fetch("https://www.googleapis.com/oauth2/v3/certs"));
+    // RSA keys with n and e, and EC keys, in the style of a typical provider JWKS
+    String jwks =
+        new JwksGenerator(16L)
+            .withKeyCount(4)
+            .withKeySizes(1024, 2048)
+            .withKinds(JwksGenerator.Kind.RSA_N_E, JwksGenerator.Kind.EC)
+            .generate();
+    msgCtxt.setVariable("message.content", jwks);
 
     Map<String, String> props = new HashMap<String, String>();
     props.put("debug", "true");
@@ -109,6 +119,41 @@ public class TransformJwksTest extends CalloutTestBase {
     Assert.assertNull(errorOutput, "errorOutput");
     Object outputContent = msgCtxt.getVariable("message.content");
     Assert.assertNotNull(outputContent);
+    Assert.assertEquals(
+        JavaxJson.fromJson((String) outputContent, Map.class), JavaxJson.fromJson(jwks, Map.class));
+  }
+
+  @Test
+  public void generatedCorpus() throws Exception {
+    JwksGenerator generator =
+        new JwksGenerator(17L)
+            .withKeyCount(12)
+            .withKeySizes(1024, 2048)
+            .withChainLengths(1, 3)
+            .withKinds(
+                JwksGenerator.Kind.RSA_X5C,
+                JwksGenerator.Kind.RSA_BOTH,
+                JwksGenerator.Kind.EC,
+                JwksGenerator.Kind.RSA_N_E);
+    String jwks = generator.generate();
+    CertificateKeyCache.getInstance().clear();
+
+    String output = TransformJwks.transform(jwks);
+    List<Object> keys = (List<Object>) JavaxJson.fromJson(output, Map.class).get("keys");
+    Assert.assertEquals(keys.size(), 12);
+    for (int i = 0; i < keys.size(); i++) {
+      Map<String, Object> actual = (Map<String, Object>) keys.get(i);
+      Assert.assertEquals(actual.get("kid"), "k" + i);
+      if (actual.get("kty").equals("EC")) {
+        Assert.assertNull(actual.get("n"));
+        continue;
+      }
+      RSAPublicKey publicKey =
+          (RSAPublicKey) generator.rsaKeyPair(((i % 2) == 0) ? 1024 : 2048).getPublic();
+      Assert.assertEquals(
+          actual.get("n"), TransformJwks.encode(publicKey.getModulus()), "key " + i);
+      Assert.assertEquals(actual.get("e"), "AQAB", "key " + i);
+    }
   }
 
   @Test
@@ -146,4 +191,929 @@ public class TransformJwksTest extends CalloutTestBase {
     Assert.assertEquals(nbytes.length, 256);
     Assert.assertEquals(actualN, expectedN);
   }
+
+  @Test
+  public void cachedResultIsReused() throws Exception {
+    String jwks = "{ \"keys\" : [ " + jwk_from_RFC7517 + "  ]}";
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("cache", "max-entries=4, ttl=601");
+    JwksCache.forSettings(JwksCache.Settings.parse(props.get("cache"))).clear();
+
+    TransformJwks callout = new TransformJwks(props);
+    msgCtxt.setVariable("message.content", jwks);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_cache_hit"), "false");
+    String firstOutput = (String) msgCtxt.getVariable("message.content");
+
+    msgCtxt.setVariable("message.content", jwks);
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_cache_hit"), "true");
+    Assert.assertEquals(msgCtxt.getVariable("message.content"), firstOutput);
+  }
+
+  @Test
+  public void cacheEvictsOldestEntries() throws Exception {
+    JwksCache.Settings settings = JwksCache.Settings.parse("max-entries=2, ttl=602");
+    JwksCache cache = JwksCache.forSettings(settings);
+    cache.clear();
+    cache.put("a", "{}");
+    Thread.sleep(2);
+    cache.put("b", "{}");
+    Thread.sleep(2);
+    cache.put("c", "{}");
+    Assert.assertEquals(cache.size(), 2);
+    Assert.assertNull(cache.get("a"));
+    Assert.assertNotNull(cache.get("b"));
+    Assert.assertNotNull(cache.get("c"));
+  }
+
+  @Test
+  public void concurrentMissesLoadOnce() throws Exception {
+    JwksCache cache = JwksCache.forSettings(JwksCache.Settings.parse("max-entries=4, ttl=603"));
+    cache.clear();
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<JwksCache.Entry>> results = new ArrayList<Future<JwksCache.Entry>>();
+      for (int i = 0; i < 8; i++) {
+        results.add(
+            pool.submit(
+                () -> {
+                  started.await();
+                  return cache.load(
+                      "rotated",
+                      () -> {
+                        loads.incrementAndGet();
+                        Thread.sleep(200);
+                        return JwksCache.Entry.of("{}".getBytes(StandardCharsets.UTF_8));
+                      });
+                }));
+      }
+      started.countDown();
+      JwksCache.Entry first = results.get(0).get();
+      for (Future<JwksCache.Entry> result : results) {
+        Assert.assertSame(result.get(), first);
+      }
+      Assert.assertEquals(loads.get(), 1);
+
+      // a failure reaches every waiter, and is not cached
+      List<Future<JwksCache.Entry>> failures = new ArrayList<Future<JwksCache.Entry>>();
+      for (int i = 0; i < 4; i++) {
+        failures.add(
+            pool.submit(
+                () ->
+                    cache.load(
+                        "broken",
+                        () -> {
+                          Thread.sleep(100);
+                          throw new IllegalStateException("bad jwks");
+                        })));
+      }
+      for (Future<JwksCache.Entry> failure : failures) {
+        try {
+          failure.get();
+          Assert.fail("expected a failure");
+        } catch (ExecutionException e) {
+          Assert.assertEquals(e.getCause().getMessage(), "bad jwks");
+        }
+      }
+      Assert.assertNull(cache.get("broken"));
+
+      // a load that does not finish holds up the others only so long
+      CountDownLatch stuck = new CountDownLatch(1);
+      Future<JwksCache.Entry> slow =
+          pool.submit(
+              () ->
+                  cache.load(
+                      "stuck",
+                      () -> {
+                        stuck.await();
+                        return JwksCache.Entry.of("{}".getBytes(StandardCharsets.UTF_8));
+                      }));
+      Thread.sleep(100);
+      long start = System.currentTimeMillis();
+      JwksCache.Entry local =
+          cache.load(
+              "stuck", () -> JwksCache.Entry.of("{\"a\":1}".getBytes(StandardCharsets.UTF_8)), 200);
+      Assert.assertTrue(System.currentTimeMillis() - start < 2000, "waited too long");
+      Assert.assertEquals(local.getContent(), "{\"a\":1}");
+      stuck.countDown();
+      slow.get();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void invalidCacheSettings() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("cache", "max-entries=lots");
+    msgCtxt.setVariable("message.content", "{ \"keys\" : [ " + jwk_from_RFC7517 + "  ]}");
+
+    TransformJwks callout = new TransformJwks(props);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("jwks_error"), "invalid value for cache setting max-entries: lots");
+  }
+
+  @Test
+  public void keyCacheCountsHitsAndMisses() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("cache", "false");
+    CertificateKeyCache.getInstance().clear();
+
+    TransformJwks callout = new TransformJwks(props);
+    msgCtxt.setVariable("message.content", "{ \"keys\" : [ " + jwk_from_RFC7517 + "  ]}");
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keycache_hits"), "0");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keycache_misses"), "1");
+
+    // a different JWKS that reuses the same certificate
+    String rotated = jwk_from_RFC7517.replace("1b94c", "1b94d");
+    msgCtxt.setVariable(
+        "message.content", "{ \"keys\" : [ " + rotated + ", " + jwk_from_RFC7517 + " ]}");
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keycache_hits"), "2");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keycache_misses"), "0");
+  }
+
+  @Test
+  public void streamingMatchesTree() throws Exception {
+    String[] inputs = {
+      "{ \"keys\" : [ " + jwk_from_RFC7517 + "  ]}",
+      "{\"other\": {\"a\": [1, 2.5, true, null, \"x\\u00e9\"]}, \"keys\": [ "
+          + jwk_from_RFC7517
+          + ", {\"kty\":\"EC\",\"crv\":\"P-256\",\"x\":\"abc\",\"y\":\"def\","
+          + " \"exp\": 17000000000} ], \"n\": 1e20}",
+      "{\"keys\": []}",
+      "{\"keys\":[" + JwkToPemTest.jwk1 + "]}"
+    };
+    for (String input : inputs) {
+      String expected = TransformJwks.transform(input, new TransformStats());
+      String actual = StreamingJwksTransformer.transform(input, new TransformStats());
+      Assert.assertEquals(actual, expected);
+    }
+  }
+
+  @Test
+  public void everyModeRejectsTheSameInput() throws Exception {
+    String[][] inputs = {
+      {"{\"keys\": []} []", null},
+      {"{\"keys\": []}}", null},
+      {"{\"keys\": [], \"keys\": [" + jwk_from_RFC7517 + "]}",
+          "jwks content has more than one keys member"}
+    };
+    for (TransformJwks.Mode mode : TransformJwks.Mode.values()) {
+      TransformOptions options = new TransformOptions().withMode(mode);
+      for (String[] input : inputs) {
+        try {
+          TransformJwks.transform(
+              input[0].getBytes(StandardCharsets.UTF_8), options, new TransformStats());
+          Assert.fail("expected a failure: " + mode + " " + input[0]);
+        } catch (Exception e) {
+          if (input[1] != null) {
+            Assert.assertEquals(e.getMessage(), input[1], mode + " " + input[0]);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void spliceMatchesTree() throws Exception {
+    String jwks =
+        new JwksGenerator(22L)
+            .withKeyCount(6)
+            .withKeySizes(1024)
+            .withChainLengths(1, 2)
+            .withKinds(
+                JwksGenerator.Kind.RSA_X5C,
+                JwksGenerator.Kind.RSA_N_E,
+                JwksGenerator.Kind.RSA_BOTH,
+                JwksGenerator.Kind.EC)
+            .generate();
+    byte[] input = jwks.getBytes(StandardCharsets.UTF_8);
+    TransformStats treeStats = new TransformStats();
+    TransformStats spliceStats = new TransformStats();
+    byte[] tree = TransformJwks.transform(input, new TransformOptions(), treeStats);
+    byte[] spliced =
+        TransformJwks.transform(
+            input, new TransformOptions().withMode(TransformJwks.Mode.SPLICE), spliceStats);
+    Assert.assertEquals(
+        JavaxJson.fromJson(new String(spliced, StandardCharsets.UTF_8), Map.class),
+        JavaxJson.fromJson(new String(tree, StandardCharsets.UTF_8), Map.class));
+    Assert.assertEquals(spliceStats.getKeysTransformed(), treeStats.getKeysTransformed());
+    Assert.assertEquals(spliceStats.getKeysSkipped(), treeStats.getKeysSkipped());
+  }
+
+  @Test
+  public void spliceKeepsTheRestOfTheInput() throws Exception {
+    String x5c =
+        ((List<String>) JavaxJson.fromJson(jwk_from_RFC7517, Map.class).get("x5c")).get(0);
+    String before =
+        "{ \"keys\" : [\n  {\"kty\":\"RSA\", \"kid\":\"1b94c\", \"x5c\":[\"" + x5c + "\"]";
+    String after = " }\n],\n \"note\": \"caf\u00e9\", \"version\": 1.50e2 }";
+    TransformOptions options = new TransformOptions().withMode(TransformJwks.Mode.SPLICE);
+
+    byte[] output =
+        TransformJwks.transform(
+            (before + after).getBytes(StandardCharsets.UTF_8), options, new TransformStats());
+    String text = new String(output, StandardCharsets.UTF_8);
+    Assert.assertTrue(text.startsWith(before + ",\"n\":\"vrjOfz9Ccdgx5nQudyhdoR17V"), text);
+    Assert.assertTrue(text.endsWith(",\"e\":\"AQAB\"" + after), text);
+
+    // with nothing left to add, the input comes back as it is
+    Assert.assertSame(TransformJwks.transform(output, options, new TransformStats()), output);
+
+    // a key with n but no e goes through the tree path, which sets both
+    byte[] partial =
+        (before + ", \"n\":\"AQAB\"" + after).getBytes(StandardCharsets.UTF_8);
+    byte[] viaSplice = TransformJwks.transform(partial, options, new TransformStats());
+    byte[] viaTree = TransformJwks.transform(partial, new TransformOptions(), new TransformStats());
+    Assert.assertEquals(viaSplice, viaTree);
+  }
+
+  @Test
+  public void spliceIsCachedApartFromTree() throws Exception {
+    String x5c =
+        ((List<String>) JavaxJson.fromJson(jwk_from_RFC7517, Map.class).get("x5c")).get(0);
+    String jwks =
+        "{ \"keys\" : [\n  {\"kty\":\"RSA\", \"kid\":\"1b94c\", \"x5c\":[\"" + x5c + "\"] }\n] }";
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("cache", "max-entries=4, ttl=608");
+    JwksCache.forSettings(JwksCache.Settings.parse(props.get("cache"))).clear();
+
+    msgCtxt.setVariable("message.content", jwks);
+    ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+
+    // a splicing policy that follows does not get the re-serialized tree output
+    props.put("transform-mode", "splice");
+    msgCtxt.setVariable("message.content", jwks);
+    actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_cache_hit"), "false");
+    String output = (String) msgCtxt.getVariable("message.content");
+    Assert.assertTrue(output.startsWith("{ \"keys\" : [\n  {\"kty\":\"RSA\""), output);
+  }
+
+  @Test
+  public void spliceCannotStrip() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("transform-mode", "splice");
+    props.put("output-profile", "minimal");
+    ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("jwks_error"),
+        "transform-mode=splice does not support stripping members");
+  }
+
+  @Test
+  public void streamingMode() throws Exception {
+    msgCtxt.setVariable("message.content", "{ \"keys\" : [ " + jwk_from_RFC7517 + "  ]}");
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("transform-mode", "streaming");
+    props.put("cache", "false");
+
+    TransformJwks callout = new TransformJwks(props);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Map<String, Object> jwksjson =
+        JavaxJson.fromJson((String) msgCtxt.getVariable("message.content"), Map.class);
+    Map<String, Object> jwk0 = (Map<String, Object>) ((List<Object>) jwksjson.get("keys")).get(0);
+    Assert.assertEquals(jwk0.get("e"), "AQAB");
+    Assert.assertNotNull(jwk0.get("n"));
+  }
+
+  @Test
+  public void streamContentIo() throws Exception {
+    message.setContent("{ \"keys\" : [ " + jwk_from_RFC7517 + "  ]}");
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message");
+    props.put("content-io", "stream");
+    props.put("cache", "false");
+
+    TransformJwks callout = new TransformJwks(props);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(message.getStreamReads(), 1);
+    Assert.assertEquals(message.getStringReads(), 0);
+    Assert.assertEquals(message.getStreamWrites(), 1);
+
+    String output = new String(message.getContentBytes(), StandardCharsets.UTF_8);
+    Map<String, Object> jwksjson = JavaxJson.fromJson(output, Map.class);
+    Map<String, Object> jwk0 = (Map<String, Object>) ((List<Object>) jwksjson.get("keys")).get(0);
+    Assert.assertEquals(jwk0.get("e"), "AQAB");
+    Assert.assertEquals(jwk0.get("kid"), "1b94c");
+  }
+
+  @Test
+  public void stringContentIoMatchesStream() throws Exception {
+    String jwks = "{ \"keys\" : [ " + jwk_from_RFC7517 + "  ], \"note\": \"caf\u00e9\"}";
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message");
+    props.put("cache", "false");
+
+    message.setContent(jwks);
+    ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(message.getStringReads(), 1);
+    Assert.assertEquals(message.getStreamReads(), 0);
+    byte[] viaString = message.getContentBytes();
+
+    props.put("content-io", "stream");
+    message.setContent(jwks);
+    actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(message.getContentBytes(), viaString);
+  }
+
+  @Test
+  public void parallelMatchesSequential() throws Exception {
+    CertificateGenerator generator = new CertificateGenerator(8L);
+    KeyPair keys = generator.rsaKeyPair(1024);
+    StringBuilder sb = new StringBuilder("{\"keys\":[");
+    for (int i = 0; i < 24; i++) {
+      if (i > 0) sb.append(",");
+      String x5c = CertificateGenerator.toX5c(generator.selfSigned(keys, "CN=key" + i));
+      String kty = (i % 5 == 4) ? "EC" : "RSA";
+      sb.append(
+          String.format("{\"kty\":\"%s\",\"kid\":\"k%d\",\"x5c\":[\"%s\"]}", kty, i, x5c));
+    }
+    byte[] jwks = sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+
+    CertificateKeyCache.getInstance().clear();
+    TransformStats sequentialStats = new TransformStats();
+    byte[] sequential =
+        TransformJwks.transform(
+            jwks, new TransformOptions().withParallelThreshold(0), sequentialStats);
+    CertificateKeyCache.getInstance().clear();
+    TransformStats parallelStats = new TransformStats();
+    byte[] parallel =
+        TransformJwks.transform(
+            jwks, new TransformOptions().withParallelThreshold(4), parallelStats);
+    Assert.assertEquals(parallel, sequential);
+    Assert.assertEquals(parallelStats.getKeyCacheMisses(), sequentialStats.getKeyCacheMisses());
+    Assert.assertEquals(parallelStats.getKeyCacheMisses(), 20);
+  }
+
+  @Test
+  public void kidSelectsOneKey() throws Exception {
+    CertificateGenerator generator = new CertificateGenerator(12L);
+    KeyPair keys = generator.rsaKeyPair(1024);
+    StringBuilder sb = new StringBuilder("{\"keys\":[");
+    for (int i = 0; i < 6; i++) {
+      if (i > 0) sb.append(",");
+      String x5c = CertificateGenerator.toX5c(generator.selfSigned(keys, "CN=kid" + i));
+      sb.append(String.format("{\"kty\":\"RSA\",\"kid\":\"k%d\",\"x5c\":[\"%s\"]}", i, x5c));
+    }
+    String jwks = sb.append("]}").toString();
+    CertificateKeyCache.getInstance().clear();
+    JwksKeyIndex.clearCache();
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "jwks");
+    props.put("kid", "{jwt_kid}");
+    props.put("destination", "selected_jwk");
+    TransformJwks callout = new TransformJwks(props);
+
+    msgCtxt.setVariable("jwks", jwks);
+    msgCtxt.setVariable("jwt_kid", "k3");
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    // only the requested key was decoded
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keycache_misses"), "1");
+    Assert.assertEquals(msgCtxt.getVariable("jwks"), jwks);
+    Map<String, Object> jwk =
+        JavaxJson.fromJson((String) msgCtxt.getVariable("selected_jwk"), Map.class);
+    Assert.assertEquals(jwk.get("kid"), "k3");
+    Assert.assertEquals(jwk.get("e"), "AQAB");
+    Assert.assertNotNull(jwk.get("n"));
+
+    // the second request for the same key is served from the index
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keycache_hits"), "0");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keycache_misses"), "0");
+
+    msgCtxt.setVariable("jwt_kid", "k9");
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_error"), "no key matches kid: k9");
+  }
+
+  @Test
+  public void kidIndexesStayWithinMaxBytes() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "jwks");
+    props.put("kid", "k1");
+    props.put("destination", "selected_jwk");
+    props.put("cache", "max-entries=8, max-bytes=40000, ttl=606");
+    JwksCache.Settings settings = JwksCache.Settings.parse(props.get("cache"));
+    LruCache<String, JwksKeyIndex> indexes = JwksKeyIndex.cached(settings);
+    indexes.clear();
+    TransformJwks callout = new TransformJwks(props);
+
+    // each index is weighed at six times its content, so only a few fit
+    for (long seed = 30; seed < 36; seed++) {
+      String jwks = new JwksGenerator(seed).withKeyCount(2).withKeySizes(1024).generate();
+      msgCtxt.setVariable("jwks", jwks);
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertTrue(indexes.weight() <= 40000, "weight " + indexes.weight());
+    }
+    Assert.assertTrue(indexes.size() > 0 && indexes.size() < 6, "size " + indexes.size());
+  }
+
+  @Test
+  public void kidReplacesSourceWithoutDestination() throws Exception {
+    msgCtxt.setVariable("message.content", "{ \"keys\" : [ " + jwk_from_RFC7517 + "  ]}");
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("kid", "1b94c");
+    props.put("cache", "false");
+
+    TransformJwks callout = new TransformJwks(props);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Map<String, Object> jwk =
+        JavaxJson.fromJson((String) msgCtxt.getVariable("message.content"), Map.class);
+    Assert.assertEquals(jwk.get("kid"), "1b94c");
+    Assert.assertEquals(jwk.get("e"), "AQAB");
+  }
+
+  @Test
+  public void minimalProfileStripsCertificates() throws Exception {
+    String jwks =
+        "{ \"keys\" : [ "
+            + jwk_from_RFC7517
+            + ", {\"kty\":\"RSA\",\"kid\":\"x5t-only\",\"x5t\":\"abc\"}"
+            + ", {\"kty\":\"EC\",\"kid\":\"ec\",\"crv\":\"P-256\",\"x\":\"AQ\",\"y\":\"AQ\","
+            + " \"x5t#S256\":\"def\"} ]}";
+    msgCtxt.setVariable("message.content", jwks);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("output-profile", "minimal");
+    props.put("cache", "max-entries=4, ttl=602");
+
+    TransformJwks callout = new TransformJwks(props);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    String output = (String) msgCtxt.getVariable("message.content");
+    Map<String, Object> jwksjson = JavaxJson.fromJson(output, Map.class);
+    List<Object> keys = (List<Object>) jwksjson.get("keys");
+    Map<String, Object> jwk0 = (Map<String, Object>) keys.get(0);
+    Assert.assertNull(jwk0.get("x5c"));
+    Assert.assertEquals(jwk0.get("e"), "AQAB");
+    // without n and e, this key keeps what it has
+    Assert.assertEquals(((Map<String, Object>) keys.get(1)).get("x5t"), "abc");
+    Assert.assertNull(((Map<String, Object>) keys.get(2)).get("x5t#S256"));
+    String bytesSaved = (String) msgCtxt.getVariable("jwks_bytes_saved");
+    Assert.assertTrue(Integer.parseInt(bytesSaved) > 0);
+
+    // a cache hit reports the same saving
+    msgCtxt.setVariable("message.content", jwks);
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_cache_hit"), "true");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_bytes_saved"), bytesSaved);
+
+    // selecting one key by kid reports what was stripped from that key alone
+    String keySaved =
+        Integer.toString(Integer.parseInt(bytesSaved) - ",\"x5t#S256\":\"def\"".length());
+    props.put("kid", "1b94c");
+    props.put("destination", "selected_jwk");
+    for (int i = 0; i < 2; i++) {
+      msgCtxt.setVariable("message.content", jwks);
+      actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertEquals(msgCtxt.getVariable("jwks_bytes_saved"), keySaved);
+    }
+    props.remove("kid");
+    props.remove("destination");
+
+    // the streaming path produces the same output
+    TransformOptions options =
+        new TransformOptions().withStripMembers(TransformOptions.DEFAULT_STRIP_MEMBERS);
+    Assert.assertEquals(
+        StreamingJwksTransformer.transform(jwks, options, new TransformStats()), output);
+
+    // a policy with the full profile and the same cache settings is not served the stripped copy
+    props.remove("output-profile");
+    msgCtxt.setVariable("message.content", jwks);
+    actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_cache_hit"), "false");
+    String full = (String) msgCtxt.getVariable("message.content");
+    Assert.assertTrue(full.contains("x5c"));
+    // the saving is exactly the difference between the two compact outputs
+    Assert.assertEquals(
+        bytesSaved,
+        Integer.toString(
+            full.getBytes(StandardCharsets.UTF_8).length
+                - output.getBytes(StandardCharsets.UTF_8).length));
+  }
+
+  @Test
+  public void customStripMembers() throws Exception {
+    msgCtxt.setVariable("message.content", "{ \"keys\" : [ " + jwk_from_RFC7517 + "  ]}");
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("output-profile", "minimal");
+    props.put("strip-members", "use, x5c");
+    props.put("cache", "false");
+
+    ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Map<String, Object> jwk0 =
+        (Map<String, Object>)
+            ((List<Object>)
+                    JavaxJson.fromJson((String) msgCtxt.getVariable("message.content"), Map.class)
+                        .get("keys"))
+                .get(0);
+    Assert.assertNull(jwk0.get("use"));
+    Assert.assertNull(jwk0.get("x5c"));
+    Assert.assertEquals(jwk0.get("kid"), "1b94c");
+
+    props.remove("output-profile");
+    actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("jwks_error"), "strip-members requires output-profile=minimal");
+  }
+
+  @Test
+  public void metricsReportPhasesAndCounts() throws Exception {
+    String jwks =
+        "{ \"keys\" : [ "
+            + jwk_from_RFC7517
+            + ", {\"kty\":\"EC\",\"kid\":\"ec\",\"crv\":\"P-256\",\"x\":\"AQ\",\"y\":\"AQ\"} ]}";
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("cache", "false");
+    CertificateKeyCache.getInstance().clear();
+
+    msgCtxt.setVariable("message.content", jwks);
+    ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertNull(msgCtxt.getVariable("jwks_parse_ns"));
+
+    props.put("metrics", "true");
+    for (String mode : new String[] {"tree", "streaming"}) {
+      CertificateKeyCache.getInstance().clear();
+      props.put("transform-mode", mode);
+      msgCtxt.setVariable("message.content", jwks);
+      actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertEquals(msgCtxt.getVariable("jwks_keys_seen"), "2", mode);
+      Assert.assertEquals(msgCtxt.getVariable("jwks_keys_transformed"), "1", mode);
+      Assert.assertEquals(msgCtxt.getVariable("jwks_keys_skipped"), "1", mode);
+      for (String phase : new String[] {"parse", "decode", "encode", "serialize"}) {
+        long nanos = Long.parseLong((String) msgCtxt.getVariable("jwks_" + phase + "_ns"));
+        Assert.assertTrue(nanos > 0, mode + " " + phase);
+      }
+    }
+  }
+
+  @Test
+  public void sameETagSkipsParse() throws Exception {
+    String jwks = "{ \"keys\" : [ " + jwk_from_RFC7517 + "  ]}";
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message");
+    TransformJwks callout = new TransformJwks(props);
+
+    msgCtxt.setVariable("target.url", "https://idp1.example.com/jwks");
+    message.setContent(jwks);
+    message.setHeader("ETag", "\"v1\"");
+    message.setHeader("Cache-Control", "public, max-age=600");
+    message.setHeader("Age", "100");
+    msgCtxt.setVariable("message.status.code", "200");
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_not_modified"), "false");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_max_age"), "500");
+    byte[] transformed = message.getContentBytes();
+
+    // the body is not read, so even content that does not parse is replaced
+    message.setContent("{ not json");
+    int reads = message.getStringReads();
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_not_modified"), "true");
+    Assert.assertEquals(message.getStringReads(), reads);
+    Assert.assertEquals(message.getContentBytes(), transformed);
+
+    // a weak ETag does not promise the same bytes, so the body is read again
+    message.setContent(jwks);
+    message.removeHeader("ETag");
+    message.setHeader("ETag", "W/\"v1\"");
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    message.setContent("{ not json");
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+  }
+
+  @Test
+  public void notModifiedServesStoredJwks() throws Exception {
+    String jwks = "{ \"keys\" : [ " + jwk_from_RFC7517 + "  ]}";
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message");
+    TransformJwks callout = new TransformJwks(props);
+
+    msgCtxt.setVariable("target.url", "https://idp1.example.com/jwks");
+    message.setContent(jwks);
+    message.setHeader("ETag", "\"v2\"");
+    msgCtxt.setVariable("message.status.code", "200");
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    byte[] transformed = message.getContentBytes();
+
+    message.setContent("");
+    message.setHeader("Cache-Control", "no-cache");
+    msgCtxt.setVariable("message.status.code", "304");
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_not_modified"), "true");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_max_age"), "0");
+    Assert.assertEquals(msgCtxt.getVariable("message.status.code"), "200");
+    Assert.assertEquals(message.getContentBytes(), transformed);
+
+    // another upstream's 304, or its 200 with the same ETag, is not matched to this JWKS
+    msgCtxt.setVariable("target.url", "https://idp2.example.com/jwks");
+    message.setContent("");
+    msgCtxt.setVariable("message.status.code", "304");
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("jwks_error"), "upstream returned 304, and no jwks is stored for it");
+    message.setContent("{ not json");
+    msgCtxt.setVariable("message.status.code", "200");
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+  }
+
+  @Test
+  public void notModifiedWithoutValidator() throws Exception {
+    String jwks = "{ \"keys\" : [ " + jwk_from_RFC7517 + "  ]}";
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message");
+    props.put("upstream-url", "{jwks_url}");
+    TransformJwks callout = new TransformJwks(props);
+
+    msgCtxt.setVariable("jwks_url", "https://idp3.example.com/jwks");
+    message.setContent(jwks);
+    message.setHeader("Last-Modified", "Tue, 01 Oct 2024 00:00:00 GMT");
+    msgCtxt.setVariable("message.status.code", "200");
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+
+    // a 304 that carries nothing to match is not taken to mean the JWKS stored
+    message.setContent("");
+    message.removeHeader("Last-Modified");
+    msgCtxt.setVariable("message.status.code", "304");
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("jwks_error"),
+        "upstream returned 304 without an ETag or Last-Modified to match");
+  }
+
+  @Test
+  public void notModifiedWithNothingStored() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message");
+    message.setContent("");
+    message.setHeader("ETag", "\"v3\"");
+    msgCtxt.setVariable("message.status.code", "304");
+
+    ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("jwks_error"), "upstream returned 304, and no jwks is stored for it");
+  }
+
+  @Test
+  public void badCertificateFailsFast() throws Exception {
+    String badX5c = "MIIBbad" + System.nanoTime();
+    String jwks = "{\"keys\":[{\"kty\":\"RSA\",\"kid\":\"bad\",\"x5c\":[\"" + badX5c + "\"]}]}";
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("cache", "false");
+    props.put("debug", "true");
+
+    msgCtxt.setVariable("message.content", jwks);
+    ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertTrue(((String) msgCtxt.getVariable("jwks_error")).startsWith("invalid x5c: "));
+    Assert.assertNull(msgCtxt.getVariable("jwks_stacktrace"));
+
+    // the failure is remembered, and thrown again without decoding
+    TransformStats stats = new TransformStats();
+    BadKeyException first = null;
+    for (int i = 0; i < 2; i++) {
+      try {
+        TransformJwks.rsaComponents(badX5c, stats);
+        Assert.fail("expected a failure");
+      } catch (BadKeyException e) {
+        if (first == null) first = e;
+        // a new exception each time, with the same message, so nothing accumulates on it
+        Assert.assertEquals(e.getMessage(), first.getMessage());
+        Assert.assertEquals(e.getSuppressed().length, 0);
+      }
+    }
+    Assert.assertEquals(stats.getKeyCacheMisses(), 0);
+
+    // the first failure keeps what caused it
+    try {
+      TransformJwks.decodeRsaComponents(badX5c);
+      Assert.fail("expected a failure");
+    } catch (BadKeyException e) {
+      Assert.assertNotNull(e.getCause());
+    }
+
+    // unwinding the streaming writer adds to the exception only for that request
+    props.put("transform-mode", "streaming");
+    for (int i = 0; i < 3; i++) {
+      msgCtxt.setVariable("message.content", jwks);
+      actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    }
+    try {
+      TransformJwks.rsaComponents(badX5c, stats);
+      Assert.fail("expected a failure");
+    } catch (BadKeyException e) {
+      Assert.assertEquals(e.getSuppressed().length, 0);
+    }
+  }
+
+  @Test
+  public void skipBadKeys() throws Exception {
+    // an RSA key whose certificate holds an EC key, next to a good one
+    JwksGenerator generator =
+        new JwksGenerator(21L)
+            .withKeyCount(2)
+            .withKeySizes(1024)
+            .withKinds(JwksGenerator.Kind.EC, JwksGenerator.Kind.RSA_X5C);
+    Map<String, Object> jwksMap = generator.jwksMap();
+    Map<String, Object> bad = (Map<String, Object>) ((List<Object>) jwksMap.get("keys")).get(0);
+    bad.put("kty", "RSA");
+    bad.remove("crv");
+    bad.remove("x");
+    bad.remove("y");
+    String jwks = JavaxJson.toJson(jwksMap);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("cache", "false");
+    props.put("metrics", "true");
+    msgCtxt.setVariable("message.content", jwks);
+    ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_error"), "x5c does not hold an RSA key: EC");
+
+    props.put("skip-bad-keys", "true");
+    msgCtxt.setVariable("message.content", jwks);
+    actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keys_transformed"), "1");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_keys_skipped"), "1");
+    Map<String, Object> jwksjson =
+        JavaxJson.fromJson((String) msgCtxt.getVariable("message.content"), Map.class);
+    List<Object> keys = (List<Object>) jwksjson.get("keys");
+    Assert.assertNull(((Map<String, Object>) keys.get(0)).get("n"));
+    Assert.assertNotNull(((Map<String, Object>) keys.get(1)).get("n"));
+  }
+
+  @Test
+  public void invalidSkipBadKeys() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("skip-bad-keys", "sometimes");
+    ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("jwks_error"), "invalid value for skip-bad-keys: sometimes");
+  }
+
+  @Test
+  public void limitsRejectOversizedInput() throws Exception {
+    String jwks =
+        new JwksGenerator(23L)
+            .withKeyCount(3)
+            .withKeySizes(1024)
+            .withChainLengths(2)
+            .withKinds(JwksGenerator.Kind.RSA_X5C)
+            .generate();
+    String[][] cases = {
+      {"max-keys=2", "more than max-keys=2 keys"},
+      {"max-x5c=1", "more than max-x5c=1 certificates in an x5c"},
+      {"max-depth=3", "nesting deeper than max-depth=3"},
+      {"max-string=100", "over max-string=100"},
+      {"max-bytes=1000", "over max-bytes=1000"}
+    };
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("cache", "false");
+    // each transform checks the limits as it parses
+    for (String mode : new String[] {"tree", "streaming", "splice"}) {
+      props.put("transform-mode", mode);
+      for (String[] limitCase : cases) {
+        props.put("limits", limitCase[0]);
+        msgCtxt.setVariable("message.content", jwks);
+        ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+        String label = mode + " " + limitCase[0];
+        Assert.assertEquals(actualResult, ExecutionResult.ABORT, label);
+        Assert.assertEquals(msgCtxt.getVariable("jwks_error"), "limit-exceeded", label);
+        Assert.assertTrue(
+            ((String) msgCtxt.getVariable("jwks_error_detail")).endsWith(limitCase[1]), label);
+      }
+    }
+    props.remove("transform-mode");
+    props.remove("cache");
+
+    // content read as a stream is refused at the limit, too
+    props.put("source", "message");
+    props.put("content-io", "stream");
+    props.put("limits", "max-bytes=1000");
+    message.setContent(jwks);
+    ExecutionResult streamed = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(streamed, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_error"), "limit-exceeded");
+    props.put("source", "message.content");
+    props.remove("content-io");
+
+    // the defaults admit a typical JWKS, and so does kid selection under the same limits
+    props.put("limits", "true");
+    msgCtxt.setVariable("message.content", jwks);
+    ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+
+    props.put("limits", "max-keys=2");
+    props.put("kid", "k0");
+    props.put("cache", "false");
+    msgCtxt.setVariable("message.content", jwks);
+    actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("jwks_error"), "limit-exceeded");
+  }
+
+  @Test
+  public void readStopsPastMaxBytes() throws Exception {
+    int[] read = new int[1];
+    InputStream in =
+        new InputStream() {
+          @Override
+          public int read() {
+            read[0]++;
+            return 'x';
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) {
+            read[0] += len;
+            Arrays.fill(b, off, off + len, (byte) 'x');
+            return len;
+          }
+        };
+    try {
+      // an endless stream
+      JsonLimits.readAll(in, JsonLimits.parse("max-bytes=20000"));
+      Assert.fail("expected a failure");
+    } catch (JsonLimits.LimitExceededException e) {
+      Assert.assertEquals(e.getMessage(), "content is over max-bytes=20000");
+    }
+    Assert.assertEquals(read[0], 20001);
+
+    byte[] content = "{\"keys\":[]}".getBytes(StandardCharsets.UTF_8);
+    byte[] atLimit =
+        JsonLimits.readAll(new ByteArrayInputStream(content), JsonLimits.parse("max-bytes=12"));
+    Assert.assertEquals(atLimit, content);
+  }
+
+  @Test
+  public void invalidLimits() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("limits", "max-keys=0");
+    ExecutionResult actualResult = new TransformJwks(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("jwks_error"), "invalid value for limits setting max-keys: 0");
+  }
 }
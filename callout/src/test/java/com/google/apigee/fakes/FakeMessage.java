@@ -22,8 +22,11 @@ import com.apigee.flow.message.MessageContext;
 import com.apigee.flow.message.TransportMessage;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -34,14 +37,19 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 public class FakeMessage implements Message {
-  private InputStream messageContentStream;
+  private byte[] messageContent;
   private Map<String, Object> variables;
   private Map<String, Object> headers;
   private Map<String, Object> qparams;
   private boolean verbose = true;
+  private int stringReads;
+  private int streamReads;
+  private int stringWrites;
+  private int streamWrites;
 
   public FakeMessage() {
     setContent("");
+    stringWrites = 0;
   }
 
   public void setVerbose(boolean v) {
@@ -53,23 +61,59 @@ public class FakeMessage implements Message {
   }
 
   public void setContent(InputStream inStream) {
-    this.messageContentStream = inStream;
+    streamWrites++;
+    try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+      byte[] data = new byte[1024];
+      int nRead;
+      while ((nRead = inStream.read(data, 0, data.length)) != -1) {
+        os.write(data, 0, nRead);
+      }
+      this.messageContent = os.toByteArray();
+    } catch (IOException exc1) {
+      throw new UncheckedIOException(exc1);
+    }
   }
 
   public void setContent(String content) {
-    this.messageContentStream = new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    stringWrites++;
+    this.messageContent = content.getBytes(StandardCharsets.UTF_8);
   }
 
   public InputStream getContentAsStream() {
-    return messageContentStream;
+    streamReads++;
+    return new ByteArrayInputStream(messageContent);
   }
 
   public String getContent() {
-    return new BufferedReader(new InputStreamReader(getContentAsStream()))
+    stringReads++;
+    return new BufferedReader(
+            new InputStreamReader(
+                new ByteArrayInputStream(messageContent), StandardCharsets.UTF_8))
         .lines()
         .collect(Collectors.joining("\n"));
   }
 
+  /* the raw bytes, without going through either getContent method */
+  public byte[] getContentBytes() {
+    return messageContent;
+  }
+
+  public int getStringReads() {
+    return stringReads;
+  }
+
+  public int getStreamReads() {
+    return streamReads;
+  }
+
+  public int getStringWrites() {
+    return stringWrites;
+  }
+
+  public int getStreamWrites() {
+    return streamWrites;
+  }
+
   private Map<String, Object> getVariables() {
     if (variables == null) {
       variables = new HashMap<String, Object>();
@@ -41,6 +41,9 @@ public class FakeMessageContext implements MessageContext {
   }
 
   public <T> T getVariable(final String name) {
+    if (name.equals("message") && !getVariables().containsKey(name)) {
+      return (T) message;
+    }
     return (T) getVariables().get(name);
   }
 
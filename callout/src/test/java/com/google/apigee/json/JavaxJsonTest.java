@@ -0,0 +1,157 @@
+// Copyright © 2024 Google, LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// All rights reserved.
+
+package com.google.apigee.json;
+
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.JsonWriter;
+import javax.json.stream.JsonGenerator;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class JavaxJsonTest {
+
+  private static final String sample =
+      "{\"keys\":[{\"kty\":\"RSA\",\"kid\":\"a\",\"x5c\":[\"MIIB\",\"MIIC\"]}],"
+          + "\"count\":2.0,\"ok\":true,\"none\":null,\"nested\":{\"s\":\"\\u00e9\\\"\"}}";
+
+  @Test
+  public void roundTrip() throws Exception {
+    Map<String, Object> map = JavaxJson.fromJson(sample, Map.class);
+    Assert.assertEquals(map.get("count"), Double.valueOf(2));
+    Assert.assertEquals(map.get("ok"), Boolean.TRUE);
+    Assert.assertTrue(map.containsKey("none"));
+    Assert.assertNull(map.get("none"));
+    List<Object> keys = (List<Object>) map.get("keys");
+    Assert.assertEquals(((Map<String, Object>) keys.get(0)).get("kid"), "a");
+    Assert.assertEquals(JavaxJson.toJson(map), sample.replace("\\u00e9", "é"));
+  }
+
+  @Test
+  public void prettyPrint() throws Exception {
+    Map<String, Object> map = JavaxJson.fromJson("{\"a\":\"b\"}", Map.class);
+    String compact = JavaxJson.toJson(map, false);
+    String pretty = JavaxJson.toJson(map, true);
+    Assert.assertEquals(compact, "{\"a\":\"b\"}");
+    Assert.assertTrue(pretty.contains("\n"));
+    Assert.assertEquals(JavaxJson.fromJson(pretty, Map.class), map);
+  }
+
+  private static String viaObjectBuilder(Map<String, Object> map, boolean prettyPrint) {
+    StringWriter out = new StringWriter();
+    // the generator pretty prints if the setting is present at all
+    Map<String, Object> config =
+        prettyPrint
+            ? Collections.<String, Object>singletonMap(JsonGenerator.PRETTY_PRINTING, true)
+            : Collections.<String, Object>emptyMap();
+    try (JsonWriter writer = Json.createWriterFactory(config).createWriter(out)) {
+      writer.writeObject(JavaxJson.toJsonObject(map));
+    }
+    return out.toString();
+  }
+
+  @Test
+  public void directWriterMatchesObjectBuilder() throws Exception {
+    Map<String, Object> map = JavaxJson.fromJson(sample, Map.class);
+    Map<String, Object> extra = new LinkedHashMap<String, Object>();
+    extra.put("int", 7);
+    extra.put("long", 1L << 40);
+    extra.put("double", 0.1);
+    extra.put("large", 1e21);
+    extra.put("decimal", new BigDecimal("1.50"));
+    extra.put("list", Arrays.asList(1.0, "x", null, false, Collections.emptyList()));
+    extra.put("empty", new LinkedHashMap<String, Object>());
+    map.put("extra", extra);
+    Assert.assertEquals(JavaxJson.toJson(map), viaObjectBuilder(map, false));
+    Assert.assertEquals(JavaxJson.toJson(map, true), viaObjectBuilder(map, true));
+  }
+
+  public static class TestKey {
+    private String kid;
+    private int size;
+    private List<String> x5c;
+
+    public String getKid() {
+      return kid;
+    }
+
+    public void setKid(String kid) {
+      this.kid = kid;
+    }
+
+    public int getSize() {
+      return size;
+    }
+
+    public void setSize(int size) {
+      this.size = size;
+    }
+
+    public List<String> getX5c() {
+      return x5c;
+    }
+
+    public void setX5c(List<String> x5c) {
+      this.x5c = x5c;
+    }
+  }
+
+  public static class TestKeySet {
+    private List<TestKey> keys;
+
+    public List<TestKey> getKeys() {
+      return keys;
+    }
+
+    public void setKeys(List<TestKey> keys) {
+      this.keys = keys;
+    }
+  }
+
+  public static class NoDefaultConstructor {
+    public NoDefaultConstructor(String value) {}
+  }
+
+  @Test
+  public void decodeBeans() throws Exception {
+    String json =
+        "{\"keys\":[{\"kid\":\"a\",\"size\":2048,\"x5c\":[\"MIIB\"],\"use\":\"sig\"},"
+            + "{\"kid\":\"b\"}]}";
+    // twice, so that the second decode uses the setters found by the first
+    for (int i = 0; i < 2; i++) {
+      TestKeySet keySet = JavaxJson.fromJson(json, TestKeySet.class);
+      Assert.assertEquals(keySet.getKeys().size(), 2);
+      TestKey first = keySet.getKeys().get(0);
+      Assert.assertEquals(first.getKid(), "a");
+      Assert.assertEquals(first.getSize(), 2048);
+      Assert.assertEquals(first.getX5c(), Arrays.asList("MIIB"));
+      TestKey second = keySet.getKeys().get(1);
+      Assert.assertEquals(second.getKid(), "b");
+      Assert.assertNull(second.getX5c());
+    }
+  }
+
+  @Test(expectedExceptions = UnsupportedOperationException.class)
+  public void decodeBeanWithoutDefaultConstructor() throws Exception {
+    JavaxJson.fromJson("{}", NoDefaultConstructor.class);
+  }
+}
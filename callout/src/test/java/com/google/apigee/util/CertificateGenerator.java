@@ -0,0 +1,133 @@
+// Copyright © 2024 Google, LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// All rights reserved.
+
+package com.google.apigee.util;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.Base64;
+import java.util.Date;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.X509v1CertificateBuilder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v1CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/*
+ * Mints keys and certificates for tests. Given the same seed, it produces
+ * the same keys, and therefore the same certificates.
+ **/
+public class CertificateGenerator {
+  private static final Date notBefore = new Date(1700000000000L);
+  private static final Date notAfter = new Date(2000000000000L);
+
+  private final SecureRandom random;
+  private long serial = 1;
+
+  public CertificateGenerator(long seed) {
+    try {
+      random = SecureRandom.getInstance("SHA1PRNG");
+      random.setSeed(seed);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public KeyPair rsaKeyPair(int bits, BigInteger publicExponent) throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA", "BC");
+    generator.initialize(new RSAKeyGenParameterSpec(bits, publicExponent), random);
+    return generator.generateKeyPair();
+  }
+
+  public KeyPair rsaKeyPair(int bits) throws Exception {
+    return rsaKeyPair(bits, RSAKeyGenParameterSpec.F4);
+  }
+
+  public KeyPair ecKeyPair(String curve) throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC", "BC");
+    generator.initialize(new ECGenParameterSpec(curve), random);
+    return generator.generateKeyPair();
+  }
+
+  private ContentSigner signer(KeyPair issuerKeys) throws Exception {
+    String algorithm =
+        issuerKeys.getPrivate().getAlgorithm().equals("RSA") ? "SHA256withRSA" : "SHA256withECDSA";
+    return new JcaContentSignerBuilder(algorithm)
+        .setProvider("BC")
+        .setSecureRandom(random)
+        .build(issuerKeys.getPrivate());
+  }
+
+  /*
+   * A v3 certificate with basic constraints and key usage extensions.
+   **/
+  public X509Certificate certificate(
+      KeyPair subjectKeys, String subject, KeyPair issuerKeys, String issuer) throws Exception {
+    X509v3CertificateBuilder builder =
+        new JcaX509v3CertificateBuilder(
+            new X500Name(issuer),
+            BigInteger.valueOf(serial++),
+            notBefore,
+            notAfter,
+            new X500Name(subject),
+            subjectKeys.getPublic());
+    boolean isCa = subjectKeys == issuerKeys;
+    builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(isCa));
+    builder.addExtension(
+        Extension.keyUsage,
+        true,
+        new KeyUsage(isCa ? KeyUsage.keyCertSign : KeyUsage.digitalSignature));
+    return convert(builder.build(signer(issuerKeys)));
+  }
+
+  public X509Certificate selfSigned(KeyPair keys, String subject) throws Exception {
+    return certificate(keys, subject, keys, subject);
+  }
+
+  /*
+   * A v1 certificate, which has no version field and no extensions.
+   **/
+  public X509Certificate selfSignedV1(KeyPair keys, String subject) throws Exception {
+    X509v1CertificateBuilder builder =
+        new JcaX509v1CertificateBuilder(
+            new X500Name(subject),
+            BigInteger.valueOf(serial++),
+            notBefore,
+            notAfter,
+            new X500Name(subject),
+            keys.getPublic());
+    return convert(builder.build(signer(keys)));
+  }
+
+  private static X509Certificate convert(X509CertificateHolder holder) throws Exception {
+    return new JcaX509CertificateConverter().setProvider("BC").getCertificate(holder);
+  }
+
+  public static String toX5c(X509Certificate certificate) throws Exception {
+    return Base64.getEncoder().encodeToString(certificate.getEncoded());
+  }
+}
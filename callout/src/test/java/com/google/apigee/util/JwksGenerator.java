@@ -0,0 +1,200 @@
+// Copyright © 2024 Google, LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// All rights reserved.
+
+package com.google.apigee.util;
+
+import com.google.apigee.json.JavaxJson;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/*
+ * Builds JWKS documents for tests and benchmarks, without the network. The
+ * key sizes, chain lengths and kinds of key are each cycled through in turn,
+ * so that key i uses element i modulo the length of each list. Given the
+ * same seed and settings, it produces the same document.
+ *
+ * Generating RSA keys is slow, particularly at 4096 bits, so there is one
+ * key pair per size; every certificate is still distinct, because each has
+ * its own subject.
+ **/
+public class JwksGenerator {
+  public enum Kind {
+    RSA_X5C, // an RSA key with only an x5c chain, which the callout must transform
+    RSA_N_E, // an RSA key with n and e and no x5c, which the callout leaves alone
+    RSA_BOTH, // an RSA key with n, e and x5c
+    EC // a P-256 key with x, y and an x5c chain
+  }
+
+  private final CertificateGenerator generator;
+  private final Map<Integer, KeyPair> rsaKeyPairs = new HashMap<Integer, KeyPair>();
+  private KeyPair ecKeyPair;
+  private KeyPair issuerKeys;
+
+  private int keyCount = 1;
+  private int[] keySizes = {2048};
+  private int[] chainLengths = {1};
+  private List<Kind> kinds = Arrays.asList(Kind.RSA_X5C);
+
+  public JwksGenerator(long seed) {
+    if (Security.getProvider("BC") == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+    this.generator = new CertificateGenerator(seed);
+  }
+
+  public JwksGenerator withKeyCount(int keyCount) {
+    this.keyCount = keyCount;
+    return this;
+  }
+
+  public JwksGenerator withKeySizes(int... keySizes) {
+    this.keySizes = keySizes;
+    return this;
+  }
+
+  public JwksGenerator withChainLengths(int... chainLengths) {
+    this.chainLengths = chainLengths;
+    return this;
+  }
+
+  public JwksGenerator withKinds(Kind... kinds) {
+    this.kinds = Arrays.asList(kinds);
+    return this;
+  }
+
+  public KeyPair rsaKeyPair(int keySize) throws Exception {
+    KeyPair keys = rsaKeyPairs.get(keySize);
+    if (keys == null) {
+      keys = generator.rsaKeyPair(keySize);
+      rsaKeyPairs.put(keySize, keys);
+    }
+    return keys;
+  }
+
+  private KeyPair ecKeyPair() throws Exception {
+    if (ecKeyPair == null) {
+      ecKeyPair = generator.ecKeyPair("secp256r1");
+    }
+    return ecKeyPair;
+  }
+
+  /*
+   * A chain of the given length, leaf first, as x5c values. A chain of
+   * length 1 is a single self-signed certificate; longer chains end in a
+   * self-signed root, with intermediates between.
+   **/
+  public List<String> chain(KeyPair leafKeys, int chainLength, String subject) throws Exception {
+    String[] x5c = new String[chainLength];
+    if (chainLength == 1) {
+      x5c[0] = CertificateGenerator.toX5c(generator.selfSigned(leafKeys, subject));
+      return Arrays.asList(x5c);
+    }
+    if (issuerKeys == null) {
+      issuerKeys = generator.rsaKeyPair(2048);
+    }
+    String issuer = "CN=root";
+    x5c[chainLength - 1] = CertificateGenerator.toX5c(generator.selfSigned(issuerKeys, issuer));
+    for (int i = chainLength - 2; i > 0; i--) {
+      String name = "CN=intermediate" + i;
+      x5c[i] =
+          CertificateGenerator.toX5c(generator.certificate(issuerKeys, name, issuerKeys, issuer));
+      issuer = name;
+    }
+    x5c[0] =
+        CertificateGenerator.toX5c(generator.certificate(leafKeys, subject, issuerKeys, issuer));
+    return Arrays.asList(x5c);
+  }
+
+  public Map<String, Object> jwk(int i) throws Exception {
+    Kind kind = kinds.get(i % kinds.size());
+    int chainLength = chainLengths[i % chainLengths.length];
+    String kid = "k" + i;
+    Map<String, Object> jwk = new LinkedHashMap<String, Object>();
+    if (kind == Kind.EC) {
+      KeyPair keys = ecKeyPair();
+      ECPublicKey publicKey = (ECPublicKey) keys.getPublic();
+      jwk.put("kty", "EC");
+      jwk.put("kid", kid);
+      jwk.put("use", "sig");
+      jwk.put("alg", "ES256");
+      jwk.put("crv", "P-256");
+      jwk.put("x", encodeCoordinate(publicKey.getW().getAffineX()));
+      jwk.put("y", encodeCoordinate(publicKey.getW().getAffineY()));
+      jwk.put("x5c", chain(keys, chainLength, "CN=" + kid));
+      return jwk;
+    }
+    KeyPair keys = rsaKeyPair(keySizes[i % keySizes.length]);
+    RSAPublicKey publicKey = (RSAPublicKey) keys.getPublic();
+    jwk.put("kty", "RSA");
+    jwk.put("kid", kid);
+    jwk.put("use", "sig");
+    jwk.put("alg", "RS256");
+    if (kind != Kind.RSA_X5C) {
+      jwk.put("n", encodeUnsigned(publicKey.getModulus()));
+      jwk.put("e", encodeUnsigned(publicKey.getPublicExponent()));
+    }
+    if (kind != Kind.RSA_N_E) {
+      jwk.put("x5c", chain(keys, chainLength, "CN=" + kid));
+    }
+    return jwk;
+  }
+
+  public Map<String, Object> jwksMap() throws Exception {
+    List<Object> keys = new ArrayList<Object>();
+    for (int i = 0; i < keyCount; i++) {
+      keys.add(jwk(i));
+    }
+    Map<String, Object> jwks = new LinkedHashMap<String, Object>();
+    jwks.put("keys", keys);
+    return jwks;
+  }
+
+  public String generate() throws Exception {
+    return JavaxJson.toJson(jwksMap());
+  }
+
+  public byte[] generateBytes() throws Exception {
+    return generate().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String encodeUnsigned(BigInteger value) {
+    byte[] bytes = value.toByteArray();
+    if (bytes[0] == 0 && bytes.length > 1) {
+      bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+    }
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+  }
+
+  private static String encodeCoordinate(BigInteger value) {
+    // P-256 coordinates are always 32 bytes, including any leading zeros
+    byte[] bytes = value.toByteArray();
+    byte[] fixed = new byte[32];
+    int length = Math.min(bytes.length, 32);
+    System.arraycopy(bytes, bytes.length - length, fixed, 32 - length, length);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(fixed);
+  }
+}